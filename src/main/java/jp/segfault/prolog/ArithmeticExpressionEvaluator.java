@@ -1,65 +1,466 @@
 package jp.segfault.prolog;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.HashMap;
 
 import jp.segfault.prolog.term.Atom;
-import jp.segfault.prolog.term.Data;
+import jp.segfault.prolog.term.CompRef;
 import jp.segfault.prolog.term.Functor;
 import jp.segfault.prolog.term.Numeric;
 import jp.segfault.prolog.term.Term;
 import jp.segfault.prolog.term.Thunk;
+import jp.segfault.prolog.term.Var;
+import jp.segfault.prolog.term.VarRef;
 import jp.segfault.prolog.term.Variable;
 
 /**
  * is/2 述語の右辺式の実行を行います。
+ * <p>式はまず{@code long}のまま評価するので、途中の値を{@link Numeric}や配列に詰め直すことはありません。
+ * 浮動小数点数を含む場合は、整数の部分式は{@code long}のまま、それ以外を{@code double}のまま評価し直します。
+ * {@code long}の範囲を超えた場合や、結果が浮動小数点数にならない関数(floor/1 など)に浮動小数点数を渡した場合は、
+ * {@link Long}・{@link BigInteger}・{@link Double}で評価し直します。</p>
  * @author shun
  */
 public class ArithmeticExpressionEvaluator {
 	
+	// longの範囲で計算出来ないことを知らせる。スタックトレースは作らない
+	@SuppressWarnings("serial")
+	private static final class Slow extends RuntimeException {
+		Slow() { super(null, null, false, false); }
+	}
+	private static final Slow SLOW = new Slow();
+	
 	/**
 	 * {@link ArithmeticExpressionEvaluator}で実行出来る関数です。
+	 * <p>アリティに応じたメソッドを実装します。{@code long}を受け取るメソッドは、
+	 * 結果が{@code long}で表せない場合に例外を投げ、{@link Number}を受け取るメソッドで計算し直されます。
+	 * {@link Number}は{@link Long}・{@link BigInteger}・{@link Double}のいずれかです。</p>
 	 * @author shun
 	 */
 	public static abstract class Function {
 
-		public Integer apply(Functor functor) {
-			Integer[] args = new Integer[functor.arity()];
-			for(int i = 0; i < args.length; ++i) {
-				args[i] = evaluate(functor.get(i));
-			}
-			return apply(args);
+		public long apply() {
+			throw SLOW;
+		}
+
+		public long apply(long x) {
+			throw SLOW;
 		}
 		
-		public Integer apply(Integer[] args) {
+		public long apply(long x, long y) {
+			throw SLOW;
+		}
+
+		public Number constant() {
 			throw new UnsupportedOperationException();
 		}
+
+		public Number apply(Number x) {
+			throw new UnsupportedOperationException();
+		}
+
+		public Number apply(Number x, Number y) {
+			throw new UnsupportedOperationException();
+		}
+
+		// 整数でも結果が浮動小数点数になる関数ならtrue
+		boolean isFloat() {
+			return false;
+		}
+
+		// 浮動小数点数(isFloat()なら整数も)の引数を、doubleのまま計算する。
+		// 結果が浮動小数点数にならない場合はSLOWを投げ、Numberを受け取るメソッドで計算し直される
+		double applyDouble() {
+			throw SLOW;
+		}
+
+		double applyDouble(double x) {
+			throw SLOW;
+		}
+
+		double applyDouble(double x, double y) {
+			throw SLOW;
+		}
+	}
+	
+	/**
+	 * 整数のみを受け付ける単項関数です。
+	 */
+	private static abstract class UnaryInteger extends Function {
+		
+		abstract BigInteger apply(BigInteger x);
+		
+		@Override
+		public Number apply(Number x) {
+			requireInteger(x);
+			if (x instanceof Long) {
+				try {
+					return apply(x.longValue());
+				} catch (Slow e) {
+				}
+			}
+			return normalize(apply(big(x)));
+		}
+	}
+	
+	/**
+	 * 整数と浮動小数点数を受け付ける単項関数です。
+	 */
+	private static abstract class UnaryNumber extends UnaryInteger {
+		
+		abstract Number apply(double x);
+		
+		@Override
+		public Number apply(Number x) {
+			if (x instanceof Double) {
+				return apply(x.doubleValue());
+			}
+			return super.apply(x);
+		}
+	}
+	
+	/**
+	 * 常に浮動小数点数を返す単項関数です。
+	 */
+	private static abstract class UnaryFloat extends Function {
+		
+		abstract double apply(double x);
+		
+		@Override
+		public Number apply(Number x) {
+			return checkFloat(apply(x.doubleValue()));
+		}
+
+		@Override
+		boolean isFloat() {
+			return true;
+		}
+
+		@Override
+		double applyDouble(double x) {
+			return checkFloat(apply(x));
+		}
+	}
+	
+	/**
+	 * 整数のみを受け付ける二項関数です。
+	 */
+	private static abstract class BinaryInteger extends Function {
+		
+		abstract BigInteger apply(BigInteger x, BigInteger y);
+		
+		@Override
+		public Number apply(Number x, Number y) {
+			requireInteger(x);
+			requireInteger(y);
+			if (x instanceof Long && y instanceof Long) {
+				try {
+					return apply(x.longValue(), y.longValue());
+				} catch (Slow e) {
+				}
+			}
+			return normalize(apply(big(x), big(y)));
+		}
+	}
+	
+	/**
+	 * 整数と浮動小数点数を受け付ける二項関数です。どちらかが浮動小数点数なら浮動小数点数で計算します。
+	 */
+	private static abstract class BinaryNumber extends BinaryInteger {
+		
+		abstract double apply(double x, double y);
+		
+		@Override
+		public Number apply(Number x, Number y) {
+			if (x instanceof Double || y instanceof Double) {
+				return checkFloat(apply(x.doubleValue(), y.doubleValue()));
+			}
+			return super.apply(x, y);
+		}
+
+		@Override
+		double applyDouble(double x, double y) {
+			return checkFloat(apply(x, y));
+		}
+	}
+	
+	/**
+	 * 常に浮動小数点数を返す二項関数です。
+	 */
+	private static abstract class BinaryFloat extends Function {
+		
+		abstract double apply(double x, double y);
+		
+		@Override
+		public Number apply(Number x, Number y) {
+			return checkFloat(apply(x.doubleValue(), y.doubleValue()));
+		}
+
+		@Override
+		boolean isFloat() {
+			return true;
+		}
+
+		@Override
+		double applyDouble(double x, double y) {
+			return checkFloat(apply(x, y));
+		}
+	}
+	
+	/**
+	 * 定数です。
+	 */
+	private static class Constant extends Function {
+		
+		final double value;
+		
+		Constant(double value) {
+			this.value = value;
+		}
+		
+		@Override
+		public Number constant() {
+			return value;
+		}
+
+		@Override
+		boolean isFloat() {
+			return true;
+		}
+
+		@Override
+		double applyDouble() {
+			return value;
+		}
 	}
 	
 	private static final HashMap<Predicate,Function> functions = new HashMap<>();
+	
+	private static final BigInteger MINUS_ONE = BigInteger.valueOf(-1);
 	static {
 		
 		//
 		// 四則演算
 		//
 		
-		functions.put(new Predicate("+", 2), new Function() {
-			public Integer apply(Integer[] args) { return args[0] + args[1]; }
+		functions.put(Predicate.of("+", 2), new BinaryNumber() {
+			public long apply(long x, long y) {
+				long r = x + y;
+				if (((x ^ r) & (y ^ r)) < 0) throw SLOW;
+				return r;
+			}
+			BigInteger apply(BigInteger x, BigInteger y) { return x.add(y); }
+			double     apply(double     x, double     y) { return x + y; }
 		});
 		
-		functions.put(new Predicate("-", 2), new Function() {
-			public Integer apply(Integer[] args) { return args[0] - args[1]; }
+		functions.put(Predicate.of("-", 2), new BinaryNumber() {
+			public long apply(long x, long y) {
+				long r = x - y;
+				if (((x ^ y) & (x ^ r)) < 0) throw SLOW;
+				return r;
+			}
+			BigInteger apply(BigInteger x, BigInteger y) { return x.subtract(y); }
+			double     apply(double     x, double     y) { return x - y; }
 		});
 		
-		functions.put(new Predicate("*", 2), new Function() {
-			public Integer apply(Integer[] args) { return args[0] * args[1]; }
+		functions.put(Predicate.of("*", 2), new BinaryNumber() {
+			public long apply(long x, long y) { return multiply(x, y); }
+			BigInteger apply(BigInteger x, BigInteger y) { return x.multiply(y); }
+			double     apply(double     x, double     y) { return x * y; }
 		});
 		
-		functions.put(new Predicate("/", 2), new Function() {
-			public Integer apply(Integer[] args) { return args[0] / args[1]; }
+		// 整数同士で割り切れる場合は整数、それ以外は浮動小数点数
+		functions.put(Predicate.of("/", 2), new Function() {
+			@Override
+			public long apply(long x, long y) {
+				checkDivisor(y);
+				if (x % y != 0 || (x == Long.MIN_VALUE && y == -1)) throw SLOW;
+				return x / y;
+			}
+			@Override
+			public Number apply(Number x, Number y) {
+				if (x instanceof Double || y instanceof Double) {
+					return applyDouble(x.doubleValue(), y.doubleValue());
+				}
+				if (x instanceof Long && y instanceof Long) {
+					// 割り切れる場合は、apply(long, long)と同じく整数にする
+					long a = x.longValue();
+					long b = checkDivisor(y.longValue());
+					if (a % b == 0 && !(a == Long.MIN_VALUE && b == -1)) {
+						return a / b;
+					}
+					if (-(1L << 53) <= a && a <= 1L << 53 && -(1L << 53) <= b && b <= 1L << 53) {
+						// どちらもdoubleで正確に表せるので、doubleの除算で正しく丸められる
+						return applyDouble(a, b);
+					}
+				}
+				BigInteger[] qr = big(x).divideAndRemainder(checkDivisor(big(y)));
+				if (qr[1].signum() == 0) {
+					return normalize(qr[0]);
+				}
+				return checkFloat(divide(big(x), big(y)));
+			}
+			@Override
+			double applyDouble(double x, double y) {
+				if (y == 0) throw zero_divisor();
+				return checkFloat(x / y);
+			}
+		});
+		
+		// 0方向への切り捨て
+		functions.put(Predicate.of("//", 2), new BinaryInteger() {
+			public long apply(long x, long y) {
+				checkDivisor(y);
+				if (x == Long.MIN_VALUE && y == -1) throw SLOW;
+				return x / y;
+			}
+			BigInteger apply(BigInteger x, BigInteger y) { return x.divide(checkDivisor(y)); }
+		});
+		
+		// 負の無限大方向への切り捨て
+		functions.put(Predicate.of("div", 2), new BinaryInteger() {
+			public long apply(long x, long y) {
+				checkDivisor(y);
+				if (x == Long.MIN_VALUE && y == -1) throw SLOW;
+				return Math.floorDiv(x, y);
+			}
+			BigInteger apply(BigInteger x, BigInteger y) {
+				BigInteger[] qr = x.divideAndRemainder(checkDivisor(y));
+				return qr[1].signum() != 0 && qr[1].signum() != y.signum() ? qr[0].subtract(BigInteger.ONE): qr[0];
+			}
+		});
+		
+		// 結果の符号は割られる数と同じ
+		functions.put(Predicate.of("rem", 2), new BinaryInteger() {
+			public long apply(long x, long y) { checkDivisor(y); return x % y; }
+			BigInteger apply(BigInteger x, BigInteger y) { return x.remainder(checkDivisor(y)); }
 		});
 		
-		functions.put(new Predicate("mod", 2), new Function() {
-			public Integer apply(Integer[] args) { return args[0] % args[1]; }
+		// 結果の符号は割る数と同じ
+		functions.put(Predicate.of("mod", 2), new BinaryInteger() {
+			public long apply(long x, long y) { checkDivisor(y); return Math.floorMod(x, y); }
+			BigInteger apply(BigInteger x, BigInteger y) {
+				BigInteger r = x.remainder(checkDivisor(y));
+				return r.signum() != 0 && r.signum() != y.signum() ? r.add(y): r;
+			}
+		});
+		
+		functions.put(Predicate.of("min", 2), new BinaryNumber() {
+			public long apply(long x, long y) { return Math.min(x, y); }
+			BigInteger apply(BigInteger x, BigInteger y) { return x.min(y); }
+			double     apply(double     x, double     y) { return Math.min(x, y); }
+			@Override
+			public Number apply(Number x, Number y) { return compare(x, y) <= 0 ? x: y; }
+			// 整数と浮動小数点数を比べた場合は、選んだ方の型のままにする
+			@Override
+			double applyDouble(double x, double y) { throw SLOW; }
+		});
+		
+		functions.put(Predicate.of("max", 2), new BinaryNumber() {
+			public long apply(long x, long y) { return Math.max(x, y); }
+			BigInteger apply(BigInteger x, BigInteger y) { return x.max(y); }
+			double     apply(double     x, double     y) { return Math.max(x, y); }
+			@Override
+			public Number apply(Number x, Number y) { return compare(x, y) >= 0 ? x: y; }
+			@Override
+			double applyDouble(double x, double y) { throw SLOW; }
+		});
+		
+		functions.put(Predicate.of("gcd", 2), new BinaryInteger() {
+			public long apply(long x, long y) {
+				if (x == Long.MIN_VALUE || y == Long.MIN_VALUE) throw SLOW;
+				x = Math.abs(x);
+				y = Math.abs(y);
+				while (y != 0) {
+					long t = x % y;
+					x = y;
+					y = t;
+				}
+				return x;
+			}
+			BigInteger apply(BigInteger x, BigInteger y) { return x.gcd(y); }
+		});
+		
+		// 累乗。** は常に浮動小数点数、^ は整数同士なら整数
+		functions.put(Predicate.of("**", 2), new BinaryFloat() {
+			double apply(double x, double y) { return Math.pow(x, y); }
+		});
+		
+		functions.put(Predicate.of("^", 2), new BinaryNumber() {
+			public long apply(long x, long y) {
+				if (y < 0) return negativePower(x, y);
+				long r = 1;
+				for (;;) {
+					if ((y & 1) != 0) r = multiply(r, x);
+					if ((y >>= 1) == 0) return r;
+					x = multiply(x, x);
+				}
+			}
+			BigInteger apply(BigInteger x, BigInteger y) {
+				if (y.signum() < 0) return negativePower(x, y);
+				if (x.bitLength() <= 1 && x.signum() >= 0) return x; // 0, 1
+				if (x.equals(MINUS_ONE)) return y.testBit(0) ? x: BigInteger.ONE;
+				// 結果は 2^((x.bitLength() - 1) * y) 以上になる
+				if (y.bitLength() > 31 || (long) (x.abs().bitLength() - 1) * y.intValue() >= Integer.MAX_VALUE) {
+					throw QueryException.resource_error(Atom.MEMORY);
+				}
+				return x.pow(y.intValue());
+			}
+			double apply(double x, double y) { return Math.pow(x, y); }
+		});
+		
+		
+		//
+		// ビット演算
+		//
+		
+		functions.put(Predicate.of("/\\", 2), new BinaryInteger() {
+			public long apply(long x, long y) { return x & y; }
+			BigInteger apply(BigInteger x, BigInteger y) { return x.and(y); }
+		});
+		
+		functions.put(Predicate.of("\\/", 2), new BinaryInteger() {
+			public long apply(long x, long y) { return x | y; }
+			BigInteger apply(BigInteger x, BigInteger y) { return x.or(y); }
+		});
+		
+		functions.put(Predicate.of("xor", 2), new BinaryInteger() {
+			public long apply(long x, long y) { return x ^ y; }
+			BigInteger apply(BigInteger x, BigInteger y) { return x.xor(y); }
+		});
+		
+		functions.put(Predicate.of("<<", 2), new BinaryInteger() {
+			public long apply(long x, long y) {
+				if (y < 0) throw SLOW;
+				if (y >= 63 || (x << y) >> y != x) throw SLOW;
+				return x << y;
+			}
+			BigInteger apply(BigInteger x, BigInteger y) { return shiftLeft(x, y); }
+		});
+		
+		functions.put(Predicate.of(">>", 2), new BinaryInteger() {
+			public long apply(long x, long y) {
+				if (y < 0) throw SLOW;
+				return arithmeticShiftRight(x, y);
+			}
+			BigInteger apply(BigInteger x, BigInteger y) { return shiftLeft(x, y.negate()); }
+		});
+		
+		functions.put(Predicate.of("\\", 1), new UnaryInteger() {
+			public long apply(long x) { return ~x; }
+			BigInteger apply(BigInteger x) { return x.not(); }
+		});
+		
+		functions.put(Predicate.of("msb", 1), new UnaryInteger() {
+			public long apply(long x) {
+				if (x <= 0) throw QueryException.type_error(Atom.make("positive_integer"), Numeric.make(x));
+				return 63 - Long.numberOfLeadingZeros(x);
+			}
+			BigInteger apply(BigInteger x) {
+				if (x.signum() <= 0) throw QueryException.type_error(Atom.make("positive_integer"), Numeric.make(x));
+				return BigInteger.valueOf(x.bitLength() - 1);
+			}
 		});
 
 		
@@ -67,57 +468,482 @@ public class ArithmeticExpressionEvaluator {
 		// 符号
 		//
 
-		functions.put(new Predicate("+", 1), new Function() {
-			public Integer apply(Integer[] args) { return  args[0]; }
+		functions.put(Predicate.of("+", 1), new UnaryNumber() {
+			public long apply(long x) { return x; }
+			BigInteger apply(BigInteger x) { return x; }
+			Number     apply(double     x) { return x; }
+			double applyDouble(double x) { return x; }
 		});
 		
-		functions.put(new Predicate("-", 1), new Function() {
-			public Integer apply(Integer[] args) { return -args[0]; }
+		functions.put(Predicate.of("-", 1), new UnaryNumber() {
+			public long apply(long x) {
+				if (x == Long.MIN_VALUE) throw SLOW;
+				return -x;
+			}
+			BigInteger apply(BigInteger x) { return x.negate(); }
+			Number     apply(double     x) { return -x; }
+			double applyDouble(double x) { return -x; }
 		});
-
-	}
-	
-	public static Integer evaluate(Term term) {
-		return term.accept(null, new Term.Visitor<Integer,Void>() {
-			
-			@Override
-			public Integer visit(Void arg, Atom term) {
-				throw QueryException.type_error(Atom.NUMERIC, term);
+		
+		functions.put(Predicate.of("abs", 1), new UnaryNumber() {
+			public long apply(long x) {
+				if (x == Long.MIN_VALUE) throw SLOW;
+				return Math.abs(x);
 			}
+			BigInteger apply(BigInteger x) { return x.abs(); }
+			Number     apply(double     x) { return Math.abs(x); }
+			double applyDouble(double x) { return Math.abs(x); }
+		});
+		
+		functions.put(Predicate.of("sign", 1), new UnaryNumber() {
+			public long apply(long x) { return Long.signum(x); }
+			BigInteger apply(BigInteger x) { return BigInteger.valueOf(x.signum()); }
+			Number     apply(double     x) { return Math.signum(x); }
+			double applyDouble(double x) { return Math.signum(x); }
+		});
 
-			@Override
-			public Integer visit(Void arg, Data<?> term) {
-				throw QueryException.type_error(Atom.NUMERIC, term);
+		
+		//
+		// 型変換
+		//
+		
+		functions.put(Predicate.of("float", 1), new UnaryFloat() {
+			double apply(double x) { return x; }
+		});
+		
+		functions.put(Predicate.of("integer", 1), new UnaryNumber() {
+			public long apply(long x) { return x; }
+			BigInteger apply(BigInteger x) { return x; }
+			// 0.5は0から遠い方に丸める。x + 0.5 は丸められることがある(0.49999999999999994 + 0.5 == 1.0)ので、
+			// 端数(x - floor(x)は0.5の付近では正確)を0.5と比べる
+			Number apply(double x) {
+				double r = Math.floor(x);
+				double d = x - r;
+				return toInteger(d > 0.5 || (d == 0.5 && x > 0) ? r + 1: r);
 			}
+		});
+		
+		functions.put(Predicate.of("round", 1), functions.get(Predicate.of("integer", 1)));
+		
+		functions.put(Predicate.of("truncate", 1), new UnaryNumber() {
+			public long apply(long x) { return x; }
+			BigInteger apply(BigInteger x) { return x; }
+			Number     apply(double     x) { return toInteger(x < 0 ? Math.ceil(x): Math.floor(x)); }
+		});
+		
+		functions.put(Predicate.of("floor", 1), new UnaryNumber() {
+			public long apply(long x) { return x; }
+			BigInteger apply(BigInteger x) { return x; }
+			Number     apply(double     x) { return toInteger(Math.floor(x)); }
+		});
+		
+		functions.put(Predicate.of("ceiling", 1), new UnaryNumber() {
+			public long apply(long x) { return x; }
+			BigInteger apply(BigInteger x) { return x; }
+			Number     apply(double     x) { return toInteger(Math.ceil(x)); }
+		});
+		
+		functions.put(Predicate.of("float_integer_part", 1), new UnaryFloat() {
+			double apply(double x) { return x < 0 ? Math.ceil(x): Math.floor(x); }
+		});
+		
+		functions.put(Predicate.of("float_fractional_part", 1), new UnaryFloat() {
+			double apply(double x) { return x - (x < 0 ? Math.ceil(x): Math.floor(x)); }
+		});
 
-			@Override
-			public Integer visit(Void arg, Numeric term) {
-				return term.value().intValue();
+		
+		//
+		// 初等関数
+		//
+		
+		functions.put(Predicate.of("sqrt", 1), new UnaryFloat() {
+			double apply(double x) { return Math.sqrt(x); }
+		});
+		
+		functions.put(Predicate.of("exp", 1), new UnaryFloat() {
+			double apply(double x) { return Math.exp(x); }
+		});
+		
+		functions.put(Predicate.of("log", 1), new UnaryFloat() {
+			double apply(double x) {
+				if (x == 0) throw QueryException.evaluation_error(Atom.UNDEFINED);
+				return Math.log(x);
 			}
+		});
+		
+		functions.put(Predicate.of("log", 2), new BinaryFloat() {
+			double apply(double b, double x) { return Math.log(x) / Math.log(b); }
+		});
+		
+		functions.put(Predicate.of("sin", 1), new UnaryFloat() {
+			double apply(double x) { return Math.sin(x); }
+		});
+		
+		functions.put(Predicate.of("cos", 1), new UnaryFloat() {
+			double apply(double x) { return Math.cos(x); }
+		});
+		
+		functions.put(Predicate.of("tan", 1), new UnaryFloat() {
+			double apply(double x) { return Math.tan(x); }
+		});
+		
+		functions.put(Predicate.of("asin", 1), new UnaryFloat() {
+			double apply(double x) { return Math.asin(x); }
+		});
+		
+		functions.put(Predicate.of("acos", 1), new UnaryFloat() {
+			double apply(double x) { return Math.acos(x); }
+		});
+		
+		functions.put(Predicate.of("atan", 1), new UnaryFloat() {
+			double apply(double x) { return Math.atan(x); }
+		});
+		
+		functions.put(Predicate.of("atan2", 2), new BinaryFloat() {
+			double apply(double y, double x) { return Math.atan2(y, x); }
+		});
+		
+		functions.put(Predicate.of("atan", 2), functions.get(Predicate.of("atan2", 2)));
 
-			@Override
-			public Integer visit(Void arg, Functor term) {
-				Function function = functions.get(term.predicate());
-				if(function == null) {
-					throw QueryException.existence_error(Atom.PREDICATE, term.predicate().toFunctor());
-				}
-				return function.apply(term);
+		
+		//
+		// 定数
+		//
+		
+		functions.put(Predicate.of("pi", 0), new Constant(Math.PI));
+		functions.put(Predicate.of("e", 0), new Constant(Math.E));
+		functions.put(Predicate.of("epsilon", 0), new Constant(Math.ulp(1.0)));
+
+	}
+	
+	/**
+	 * 式を評価し、その値を返します。
+	 */
+	public static Numeric evaluate(Term term) {
+		return evaluate(term, null);
+	}
+	
+	/**
+	 * 式を評価し、その値を返します。
+	 * @param binding 式が実体化されていない場合、その変数を参照するコールフレーム
+	 */
+	public static Numeric evaluate(Term term, Binding binding) {
+		try {
+			return Numeric.make(evalLong(term, binding));
+		} catch (Slow e) {
+		}
+		try {
+			return Numeric.make(evalDouble(term, binding));
+		} catch (Slow e) {
+			return Numeric.make(evalNumber(term, binding));
+		}
+	}
+	
+	/**
+	 * 二つの式を評価し、その大小を比較します。
+	 * @return x &lt; y なら負、x = y なら0、x &gt; y なら正の値
+	 */
+	public static int compare(Term x, Term y) {
+		return compare(x, null, y, null);
+	}
+	
+	/**
+	 * 二つの式を評価し、その大小を比較します。
+	 * @return x &lt; y なら負、x = y なら0、x &gt; y なら正の値
+	 */
+	public static int compare(Term x, Binding bx, Term y, Binding by) {
+		try {
+			return Long.compare(evalLong(x, bx), evalLong(y, by));
+		} catch (Slow e) {
+		}
+		try {
+			// 片方が整数でも、浮動小数点数に変換して比べる
+			double a = evalOperand(x, bx);
+			double b = evalOperand(y, by);
+			return a < b ? -1: a > b ? 1: 0;
+		} catch (Slow e) {
+			return compare(evalNumber(x, bx), evalNumber(y, by));
+		}
+	}
+	
+	// 式をlongで評価する。longで表せない場合はSLOWを投げる
+	private static long evalLong(Term term, Binding binding) {
+		if ((term = resolve(term, binding)) instanceof CompRef) {
+			binding = ((CompRef) term).binding;
+			   term = ((CompRef) term).comp;
+		}
+		if (term instanceof Numeric) {
+			Numeric numeric = (Numeric) term;
+			if (!numeric.isInteger() || numeric.isBig()) {
+				throw SLOW;
 			}
-			
-			@Override
-			public Integer visit(Void arg, Variable term) {
-				Term val = term.get();
-				if(val == null) {
-					throw QueryException.instantiation_error();
-				}
-				return val.accept(null, this);
+			return numeric.longValue();
+		}
+		Functor  functor  = functor(term);
+		Function function = function(functor);
+		switch (functor.arity()) {
+		case 0:  return function.apply();
+		case 1:  return function.apply(evalLong(functor.get(0), binding));
+		default: return function.apply(evalLong(functor.get(0), binding), evalLong(functor.get(1), binding));
+		}
+	}
+	
+	// 浮動小数点数を含む式をdoubleで評価する。整数の部分式はlongで評価する。
+	// 結果が浮動小数点数にならない場合や、整数の部分式がlongで表せない場合はSLOWを投げる
+	private static double evalDouble(Term term, Binding binding) {
+		if ((term = resolve(term, binding)) instanceof CompRef) {
+			binding = ((CompRef) term).binding;
+			   term = ((CompRef) term).comp;
+		}
+		if (term instanceof Numeric) {
+			Numeric numeric = (Numeric) term;
+			if (numeric.isInteger()) {
+				throw SLOW; // longで表せない整数
+			}
+			return numeric.doubleValue();
+		}
+		Functor  functor  = functor(term);
+		Function function = function(functor);
+		// 引数が全て整数なら、結果が浮動小数点数になる関数でなければ整数の計算になる
+		boolean floating = function.isFloat();
+		switch (functor.arity()) {
+		case 0:
+			return function.applyDouble();
+		case 1: {
+			double x;
+			try {
+				x = evalLong(functor.get(0), binding);
+			} catch (Slow e) {
+				x = evalDouble(functor.get(0), binding);
+				floating = true;
+			}
+			if (!floating) {
+				throw SLOW;
+			}
+			return function.applyDouble(x);
+		}
+		default: {
+			double x;
+			double y;
+			try {
+				x = evalLong(functor.get(0), binding);
+			} catch (Slow e) {
+				x = evalDouble(functor.get(0), binding);
+				floating = true;
+			}
+			try {
+				y = evalLong(functor.get(1), binding);
+			} catch (Slow e) {
+				y = evalDouble(functor.get(1), binding);
+				floating = true;
+			}
+			if (!floating) {
+				throw SLOW;
 			}
+			return function.applyDouble(x, y);
+		}
+		}
+	}
 
-			@Override
-			public Integer visit(Void arg, Thunk term) {
-				return term.strip().accept(null, this);
+	// 比較の片方の式を、整数ならlongで、それ以外はdoubleで評価して、doubleで返す
+	private static double evalOperand(Term term, Binding binding) {
+		try {
+			return evalLong(term, binding);
+		} catch (Slow e) {
+			return evalDouble(term, binding);
+		}
+	}
+
+	// 式をLong・BigInteger・Doubleのいずれかで評価する
+	private static Number evalNumber(Term term, Binding binding) {
+		if ((term = resolve(term, binding)) instanceof CompRef) {
+			binding = ((CompRef) term).binding;
+			   term = ((CompRef) term).comp;
+		}
+		if (term instanceof Numeric) {
+			Numeric numeric = (Numeric) term;
+			if (!numeric.isInteger()) {
+				return numeric.doubleValue();
 			}
-			
-		});
+			return numeric.isBig() ? numeric.value(): (Number) numeric.longValue();
+		}
+		Functor  functor  = functor(term);
+		Function function = function(functor);
+		switch (functor.arity()) {
+		case 0:  return function.constant();
+		case 1:  return function.apply(evalNumber(functor.get(0), binding));
+		default: return function.apply(evalNumber(functor.get(0), binding), evalNumber(functor.get(1), binding));
+		}
+	}
+	
+	// 変数を、新たな項を作らずに辿る
+	private static Term resolve(Term term, Binding binding) {
+		for (;;) {
+			if (term instanceof Var && binding != null) {
+				term = binding.getSlot(((Var) term).id);
+			}
+			else if (term instanceof VarRef) {
+				term = ((VarRef) term).get();
+			}
+			else if (term instanceof Thunk) {
+				term = term.strip();
+			}
+			else {
+				return term;
+			}
+			if (term == null) {
+				throw QueryException.instantiation_error();
+			}
+		}
+	}
+	
+	private static Functor functor(Term term) {
+		if (term instanceof Variable) {
+			throw QueryException.instantiation_error();
+		}
+		if (!(term instanceof Functor)) {
+			throw QueryException.type_error(Atom.EVALUABLE, term);
+		}
+		return (Functor) term;
+	}
+	
+	private static Function function(Functor functor) {
+		Predicate predicate = functor.predicate();
+		Function function = functions.get(predicate);
+		if (function == null) {
+			throw QueryException.type_error(Atom.EVALUABLE, predicate.toFunctor());
+		}
+		return function;
+	}
+	
+	private static int compare(Number x, Number y) {
+		if (x instanceof Double || y instanceof Double) {
+			double a = x.doubleValue();
+			double b = y.doubleValue();
+			return a < b ? -1: a > b ? 1: 0;
+		}
+		if (x instanceof Long && y instanceof Long) {
+			return Long.compare(x.longValue(), y.longValue());
+		}
+		return big(x).compareTo(big(y));
+	}
+	
+	private static BigInteger big(Number x) {
+		return x instanceof BigInteger ? (BigInteger) x: BigInteger.valueOf(x.longValue());
+	}
+	
+	// longで表せる場合はLongにする
+	private static Number normalize(BigInteger x) {
+		return x.bitLength() < 64 ? (Number) x.longValue(): x;
+	}
+	
+	private static Number toInteger(double x) {
+		checkFloat(x);
+		if (-0x1p63 <= x && x < 0x1p63) {
+			return (long) x;
+		}
+		return new BigDecimal(x).toBigInteger();
+	}
+	
+	private static void requireInteger(Number x) {
+		if (x instanceof Double) {
+			throw QueryException.type_error(Atom.INTEGER, Numeric.make(x.doubleValue()));
+		}
+	}
+	
+	private static double checkFloat(double x) {
+		if (Double.isNaN(x)) {
+			throw QueryException.evaluation_error(Atom.UNDEFINED);
+		}
+		if (Double.isInfinite(x)) {
+			throw QueryException.evaluation_error(Atom.FLOAT_OVERFLOW);
+		}
+		return x;
+	}
+	
+	private static QueryException zero_divisor() {
+		return QueryException.evaluation_error(Atom.ZERO_DIVISOR);
+	}
+	
+	private static long checkDivisor(long y) {
+		if (y == 0) throw zero_divisor();
+		return y;
+	}
+	
+	private static BigInteger checkDivisor(BigInteger y) {
+		if (y.signum() == 0) throw zero_divisor();
+		return y;
+	}
+	
+	// オーバーフローする場合はSLOWを投げる
+	private static long multiply(long x, long y) {
+		long r = x * y;
+		if (((Math.abs(x) | Math.abs(y)) >>> 31) != 0) {
+			if ((y != 0 && r / y != x) || (x == Long.MIN_VALUE && y == -1)) throw SLOW;
+		}
+		return r;
+	}
+	
+	private static long arithmeticShiftRight(long x, long y) {
+		return y >= 64 ? (x < 0 ? -1: 0): x >> y;
+	}
+	
+	// yが負なら右シフトする。結果がBigIntegerで表せないほど大きくなる場合はresource_errorにする
+	private static BigInteger shiftLeft(BigInteger x, BigInteger y) {
+		if (y.signum() < 0) {
+			if (y.negate().compareTo(BigInteger.valueOf(x.bitLength())) >= 0) {
+				return x.signum() < 0 ? MINUS_ONE: BigInteger.ZERO;
+			}
+			return x.shiftRight(-y.intValue());
+		}
+		if (x.signum() == 0) {
+			return x;
+		}
+		if (y.bitLength() > 31 || (long) x.bitLength() + y.intValue() >= Integer.MAX_VALUE) {
+			throw QueryException.resource_error(Atom.MEMORY);
+		}
+		return x.shiftLeft(y.intValue());
+	}
+	
+	// 整数の商x / yを、doubleに正しく丸める(最近接偶数丸め)
+	private static double divide(BigInteger x, BigInteger y) {
+		int sign = x.signum() * y.signum();
+		x = x.abs();
+		y = y.abs();
+		// 商が55〜56ビットになるように桁をそろえる。q * 2^-s が商で、余りは丸めにだけ使う
+		int s = y.bitLength() - x.bitLength() + 55;
+		BigInteger[] qr = s >= 0 ? x.shiftLeft(s).divideAndRemainder(y): x.divideAndRemainder(y.shiftLeft(-s));
+		long    q      = qr[0].longValue();
+		boolean sticky = qr[1].signum() != 0;
+		// 仮数の53ビット(非正規化数なら 2^-1074 の桁)より下を捨てる
+		int top   = 63 - Long.numberOfLeadingZeros(q);
+		int shift = Math.max(top - 52, s - 1074);
+		if (shift > 62) {
+			return sign * 0.0;
+		}
+		long    m    = q >>> shift;
+		boolean half = (q >>> (shift - 1) & 1) != 0;
+		sticky |= (q & ((1L << (shift - 1)) - 1)) != 0;
+		if (half && (sticky || (m & 1) != 0)) {
+			++m;
+		}
+		// mは2^53以下なので、2の累乗を掛けても(オーバーフローしなければ)丸めは起こらない
+		return sign * Math.scalb((double) m, shift - s);
+	}
+	
+	// 負の指数の整数の累乗は、結果が整数になる場合のみ許す
+	private static long negativePower(long x, long y) {
+		if (x ==  1) return 1;
+		if (x == -1) return (y & 1) == 0 ? 1: -1;
+		if (x ==  0) throw zero_divisor();
+		throw QueryException.type_error(Atom.FLOAT, Numeric.make(x));
+	}
+	
+	private static BigInteger negativePower(BigInteger x, BigInteger y) {
+		if (x.bitLength() >= 64) {
+			throw QueryException.type_error(Atom.FLOAT, Numeric.make(x));
+		}
+		// 指数は偶奇だけが意味を持つ
+		return BigInteger.valueOf(negativePower(x.longValue(), y.testBit(0) ? -1: -2));
 	}
 }
@@ -20,7 +20,10 @@ public class Binding {
 	public final int       ordinal;
 
 	// call/1 の為に後から変更できるように・・・
+	// ローカル領域は local[offset] から locals()*2 個。{@link Query}のヒープセグメントの一部のこともある
 	private Term[] local = new Term[]{};
+	private int    offset;
+	private int    size;
 
 	public Binding(int ancestry, Procedure procedure, Code next,
 			Binding caller, Binding base)
@@ -33,33 +36,59 @@ public class Binding {
 		if(base != null) {
 			ordinal = base.ordinal;
 			local   = base.local;
+			offset  = base.offset;
+			size    = base.size;
 			return;
 		}
 		ordinal = ancestry;
 		if(procedure != null) {
-			local = new Term[procedure.locals() * 2];
+			size  = procedure.locals();
+			local = new Term[size * 2];
 		}
 	}
+
+	/**
+	 * ローカル領域として、heap[offset] からの procedure.locals()*2 個を使うコールフレームを作成します。
+	 * <p>その範囲は、呼び出し側でnullにしておく必要があります。</p>
+	 */
+	public Binding(int ancestry, Procedure procedure, Code next,
+			Binding caller, Term[] heap, int offset)
+	{
+		this.ancestry  = ancestry;
+		this.procedure = procedure;
+		this.next      = next;
+		this.caller    = caller;
+		this.depth     = caller != null ? caller.depth + 1: 0;
+		this.ordinal   = ancestry;
+		this.local     = heap;
+		this.offset    = offset;
+		this.size      = procedure.locals();
+	}
 	
-	public Term getSlot(int i) { return local[i*2  ]; }
-	public Term getTemp(int i) { return local[i*2+1]; }
+	public Term getSlot(int i) { return local[offset + i*2  ]; }
+	public Term getTemp(int i) { return local[offset + i*2+1]; }
 	
-	public void setSlot(int i, Term term) { local[i*2  ] = term; }
-	public void setTemp(int i, Term term) { local[i*2+1] = term; }
+	public void setSlot(int i, Term term) { local[offset + i*2  ] = term; }
+	public void setTemp(int i, Term term) { local[offset + i*2+1] = term; }
 	
 	/**
 	 * ローカル領域のサイズです。
 	 */
 	public int locals() {
-		return local.length / 2;
+		return size;
 	}
 
 	/**
 	 * ローカル領域を拡張します。
+	 * <p>ヒープセグメント上のローカル領域は、独立した配列に移します。</p>
 	 */
 	public void expandLocal(int locals) {
-		if(locals > locals()) {
-			local = Arrays.copyOf(local, locals * 2);
+		if(locals > size) {
+			Term[] local = new Term[locals * 2];
+			System.arraycopy(this.local, offset, local, 0, size * 2);
+			this.local  = local;
+			this.offset = 0;
+			this.size   = locals;
 		}
 	}
 }
@@ -3,64 +3,80 @@ package jp.segfault.prolog;
 import java.util.Iterator;
 
 import jp.segfault.prolog.code.Code;
-import jp.segfault.prolog.term.VarRef;
+import jp.segfault.prolog.code.Goal;
+import jp.segfault.prolog.term.Term;
 
 /**
  * バックトラッキングの実行位置を表現します。
+ * <p>{@link Query}はpopしたChoicePointを再利用するので、参照を保持し続けてはいけません。</p>
  * @author shun
  */
 public class ChoicePoint {
 
-	public final ChoicePoint parent;
-	public final Binding     callee;
-	public final boolean     local;
-	public final int         ancestry;
+	public Binding     callee;
+	public boolean     local;
+	public int         ancestry;
 	
-	private VarRef head;
+	/**
+	 * pushした時点の{@link Trail}の高さです。
+	 */
+	public int         mark;
 	
-	final Iterator<Code> iterator;
+	/**
+	 * pushした時点の{@link Query}のヒープセグメントの使用位置です。
+	 */
+	public int         heapTop;
 	
-	ChoicePoint(ChoicePoint parent, Binding callee
-			, int ancestry, boolean local, Iterator<Code> iterator)
-	{
-		this.parent   = parent;
+	// 次の候補。以下のいずれか一つを使用する
+	Iterator<Code>  iterator; // Foreignなどが設定した候補({@link AutoCloseable}なら、捨てる時に閉じる)
+	Table.Rows      rows;     // 述語の候補の節(indexは次に試す生きている節の位置)
+	Code[]          codes;    // Choiceの選択肢
+	Program         program;  // コンパイル済みの述語(indexはpc)
+	
+	Goal   goal;
+	Term[] args;
+	int    revision;
+	int    index;
+	
+	// catch/3 が例外から回復する時に戻る位置({@link Query#setCatchPoint()})
+	boolean catches;
+	
+	void reset(Binding callee, int ancestry, boolean local, int mark) {
 		this.callee   = callee;
 		this.local    = local;
 		this.ancestry = ancestry;
-		this.iterator = iterator;
+		this.mark     = mark;
+		this.catches  = false;
 	}
 	
-	public void add(VarRef var) {
-		if (var.binding.ordinal <= ancestry) {
-			if (var.getTemp() != null) {
-				throw new IllegalStateException("getTemp(var) != null");
+	/**
+	 * 再利用に備えて、参照を全て手放します。
+	 */
+	void clear() {
+		if (iterator instanceof AutoCloseable) {
+			// カットなどで候補を使い切らずに捨てる場合に、候補が使っている資源を解放させる
+			try {
+				((AutoCloseable) iterator).close();
+			} catch (Exception e) {
+				throw new QueryException(e);
 			}
-			var.setTemp(head);
-			head = var;
 		}
+		callee   = null;
+		iterator = null;
+		rows     = null;
+		codes    = null;
+		program  = null;
+		goal     = null;
+		args     = null;
 	}
-
-	public void drain(ChoicePoint that) {
-		for (ChoicePoint prev = that; prev != this; prev = prev.parent) {
-			VarRef next = prev.head;
-			while (next != null) {
-				VarRef temp = (VarRef) next.getTemp();
-				if(next.binding.ordinal <= ancestry) {
-					next.setTemp(head);
-					head = next;
-				}
-				next = temp;
-			}
-		}
-	}
-
-	public void undo() {
-		while (head != null) {
-			VarRef var = head;
-			head = (VarRef) var.getTemp();
-			var.setTemp(null);
-			var.setSlot(null);
-		}
+	
+	/**
+	 * まだ試していない候補があるかどうかを返します。
+	 */
+	boolean hasNext() {
+		if (iterator != null) return iterator.hasNext();
+		if (rows     != null) return index < rows.size();
+		if (codes    != null) return index < codes.length;
+		return program != null && index >= 0;
 	}
 }
-
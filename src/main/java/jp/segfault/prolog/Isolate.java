@@ -0,0 +1,252 @@
+package jp.segfault.prolog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import jp.segfault.prolog.procedure.Coding;
+import jp.segfault.prolog.term.Complex;
+import jp.segfault.prolog.term.Functor;
+import jp.segfault.prolog.term.Term;
+import jp.segfault.prolog.term.Variable;
+
+/**
+ * ゴールを別のスレッドで、独立した{@link Query}として実行します(isolate/2, isolate_all/3)。
+ * <p>ゴールと解の形(テンプレート)は、作成した時にコールフレームから切り離して複製するので、
+ * 呼び出し元とは変数を共有しません。見つけた解もテンプレートの複製として集め、{@link #join()}で受け取ります。
+ * 解を一つずつ{@link #next()}で受け取るように作成することもできます。
+ * データベースとテーブル化した述語の表は、同じ{@link State}の他のクエリと共有します。</p>
+ * <p>スレッドは、仮想スレッドが使えるJVM(Java 21 以降)ではゴールごとに仮想スレッドを作り、
+ * それ以外ではデーモンスレッドのプールから割り当てます。</p>
+ * @author shun
+ */
+public class Isolate {
+
+	/**
+	 * 全ての解を集める場合に指定する、解の数の上限です。
+	 */
+	public static final int ALL = Integer.MAX_VALUE;
+
+	private static final ExecutorService executor = newExecutor();
+
+	// 解を一つずつ受け取る場合の、解の終わり
+	private static final Object END = new Object();
+
+	private final int   limit;
+	private final Query query;
+	private final Future<List<Term>> future;
+
+	// 解を一つずつ受け取る場合の、見つけた解(終わりはEND、例外はQueryException)と、次の解を求めてよい数。
+	// 解を集める場合はどちらもnull
+	private final BlockingQueue<Object> solutions;
+	private final Semaphore demand;
+	// 解の終わりを受け取った
+	private boolean exhausted;
+
+	/**
+	 * ゴールgoalの実行を開始し、limit個までの解を集めます。
+	 * <p>templateとgoalは、呼び出し元のコールフレームに束縛された項でも構いません。</p>
+	 * @param limit 集める解の数の上限
+	 */
+	public Isolate(State state, Term template, Term goal, int limit) {
+		this(state, template, goal, limit, null);
+	}
+
+	/**
+	 * ゴールgoalの実行を開始し、解を{@link #next()}で一つずつ受け取るようにします。
+	 * <p>最初の解はすぐに求め始めます。二つ目からは、一つ前の解を受け取った時に求め始めるので、
+	 * 受け取らない解を先へ先へと求めることはありません。</p>
+	 * <p>readyがnullでなければ、最初の解・解の終わり・例外のいずれかを{@link #next()}で待たずに受け取れるようになった時に、
+	 * 一度だけこのIsolateをreadyに追加します。いくつかのIsolateのうち、先に結果が出たものを待つのに使います。</p>
+	 */
+	public Isolate(State state, Term template, Term goal, BlockingQueue<Isolate> ready) {
+		this(state, template, goal, 0, ready);
+	}
+
+	// limitが0なら、解を一つずつ受け取る
+	private Isolate(State state, Term template, Term goal, final int limit, final BlockingQueue<Isolate> ready) {
+		// テンプレートとゴールの変数の対応を保つように、まとめて切り離す
+		Complex pair = (Complex) Functor.create(",", template, goal).unbind();
+		Variable bridge = Variable.create();
+		final Coding coding = Coding.create(state,
+				Functor.create("?-",
+				Functor.create( ",", pair.get(1),
+				Functor.create( "=", bridge, pair.get(0)))));
+		final int slot = coding.vars().get(bridge.name()).id();
+		this.limit = limit;
+		query  = new Query(state, coding);
+		if (limit == 0) {
+			solutions = new LinkedBlockingQueue<Object>();
+			demand    = new Semaphore(1);
+			future    = executor.submit(new Callable<List<Term>>() {
+				@Override
+				public List<Term> call() throws InterruptedException {
+					BlockingQueue<Isolate> first = ready;
+					try {
+						List<Term> values;
+						do {
+							demand.acquire();
+							try {
+								values = query.ask();
+							} catch (QueryException e) {
+								offer(first, e.term.isDefinite() ? e: new QueryException(e.term.unbind()));
+								break;
+							}
+							offer(first, values == null ? END: values.get(slot));
+							first = null; // readyに知らせるのは最初の結果だけ
+						} while (values != null);
+					} finally {
+						// 中断された場合も、ゴールが残した選択肢(入れ子の &/2 など)を捨てる
+						query.close();
+					}
+					return null;
+				}
+			});
+			return;
+		}
+		solutions = null;
+		demand    = null;
+		future    = executor.submit(new Callable<List<Term>>() {
+			@Override
+			public List<Term> call() {
+				ArrayList<Term> results = new ArrayList<Term>();
+				try {
+					List<Term> values;
+					while (results.size() < limit && (values = query.ask()) != null) {
+						results.add(values.get(slot));
+					}
+				} catch (QueryException e) {
+					// 例外の項はこのクエリのコールフレームに束縛されているので、切り離しておく
+					throw e.term.isDefinite() ? e: new QueryException(e.term.unbind());
+				} finally {
+					// 上限に達した場合は、残りの解の選択肢を捨てる
+					query.close();
+				}
+				return results;
+			}
+		});
+	}
+
+	// 解を一つずつ受け取る場合に、見つけた解などを渡す。readyがnullでなければ、このIsolateを追加する
+	private void offer(BlockingQueue<Isolate> ready, Object solution) {
+		solutions.add(solution);
+		if (ready != null) {
+			ready.add(this);
+		}
+	}
+
+	/**
+	 * 集める解の数の上限を返します。解を一つずつ受け取る場合は0を返します。
+	 */
+	public int limit() {
+		return limit;
+	}
+
+	/**
+	 * 次の解が見つかるのを待って、返します。解を一つずつ受け取るように作成した場合にだけ使えます。
+	 * <p>解はコールフレームから切り離したテンプレートの複製です。返すと同時に、その次の解を求め始めます。
+	 * 解がもう無いか、中断された場合はnullを返します。ゴールが例外をスローした場合は、その例外をスローします。
+	 * 待っている間に割り込まれた場合は、ゴールを中断して{@link CancellationException}をスローします。</p>
+	 */
+	public Term next() {
+		if (solutions == null) {
+			throw new IllegalStateException("isolate/2: not a stream");
+		}
+		if (exhausted) {
+			return null;
+		}
+		Object solution;
+		try {
+			solution = solutions.take();
+		} catch (InterruptedException e) {
+			cancel();
+			Thread.currentThread().interrupt();
+			throw new CancellationException("isolate/2: interrupted");
+		}
+		if (solution instanceof Term) {
+			demand.release();
+			return (Term) solution;
+		}
+		exhausted = true;
+		if (solution instanceof QueryException) {
+			throw (QueryException) solution;
+		}
+		return null;
+	}
+
+	/**
+	 * 実行が終わるのを待って、見つけた解を返します。
+	 * <p>解はコールフレームから切り離したテンプレートの複製で、見つけた順に並びます。
+	 * 中断された場合はnullを返します。ゴールが例外をスローした場合は、その例外をスローします。
+	 * 待っている間に割り込まれた場合は、ゴールを中断して{@link CancellationException}をスローします。
+	 * 解を一つずつ受け取る場合は使えません。</p>
+	 */
+	public List<Term> join() {
+		if (solutions != null) {
+			throw new IllegalStateException("isolate/2: a stream cannot be joined");
+		}
+		try {
+			return future.get();
+		} catch (CancellationException e) {
+			return null;
+		} catch (InterruptedException e) {
+			cancel();
+			Thread.currentThread().interrupt();
+			throw new CancellationException("isolate/2: interrupted");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof CancellationException) {
+				return null; // Query#cancel() による中断
+			}
+			if (cause instanceof QueryException) {
+				throw (QueryException) cause;
+			}
+			throw new QueryException(cause);
+		}
+	}
+
+	/**
+	 * 実行を中断します。既に終わっている場合は何もしません。
+	 */
+	public void cancel() {
+		query.cancel();
+		future.cancel(true);
+		if (solutions != null) {
+			// 次の解を待っているスレッドがあれば、解の終わりとして起こす
+			solutions.add(END);
+		}
+	}
+
+	/**
+	 * 実行が終わっているかどうかを返します。
+	 */
+	public boolean isDone() {
+		return future.isDone();
+	}
+
+	private static ExecutorService newExecutor() {
+		try {
+			// Java 8 でもビルドできるように、リフレクションで呼び出す
+			return (ExecutorService) Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			return Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "isolate");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,274 @@
+package jp.segfault.prolog;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import jp.segfault.prolog.procedure.Coding;
+import jp.segfault.prolog.procedure.Procedure;
+import jp.segfault.prolog.term.Atom;
+import jp.segfault.prolog.term.Complex;
+import jp.segfault.prolog.term.Functor;
+import jp.segfault.prolog.term.Term;
+import jp.segfault.prolog.term.Variable;
+
+import static jp.segfault.prolog.Predicate.*;
+
+/**
+ * ゴールの全ての解を、探索木の枝ごとに{@link ForkJoinPool}で並列に求めます(parallel_findall/3)。
+ * <p>探索木の根に近い部分は、ゴールの列(リゾルベント)を項として持ち、先頭のゴールを一段ずつ展開して枝に分けます。
+ * 分けた枝はそれぞれ独立した項の複製なので、変数を共有せずに別のスレッドで実行できます。</p>
+ * <ul>
+ * <li>節を持つ述語の呼び出しは、節ごとに頭部と単一化して本体に置き換える(節にカットがあれば展開しない)</li>
+ * <li>(A ; B) は A と B に分ける</li>
+ * <li>それ以外のゴール(組み込み述語、事実だけの述語、A -> B など)は、{@link Query}で全ての解を求めて、解ごとに分ける</li>
+ * </ul>
+ * <p>プールに待っている枝が十分にあるか、展開が一定の深さに達した枝は、残りのゴールをそのまま一つのQueryで実行します。
+ * 枝の解は節や解の順に連結するので、解の順序は findall/3 と同じになります。</p>
+ * <p>データベースとテーブル化した述語の表は、同じ{@link State}の他のクエリと共有します。</p>
+ * @author shun
+ */
+public class OrParallel {
+
+	// 展開する深さ(選択肢が一つの展開も数える)の上限。これより深い枝は一つのQueryで実行する。
+	// 展開の一段ごとにQueryを作るので、深くしすぎると並列化しない場合より遅くなる
+	private static final int MAX_DEPTH = 16;
+
+	// プールに待っている枝がこれより多ければ、それ以上分けない
+	private static final int SURPLUS = 2;
+
+	private static final ForkJoinPool pool = new ForkJoinPool();
+
+	private static final Predicate SOFT_IF_THEN = Predicate.of("*->", 2);
+	private static final Predicate   SEPARATOR  = Predicate.of("-", 2);
+
+	/**
+	 * ゴールgoalの全ての解におけるtemplateの複製を、解の順に返します。
+	 * <p>templateとgoalは、呼び出し元のコールフレームに束縛された項でも構いません。
+	 * 返す項はコールフレームから切り離されています。</p>
+	 */
+	public static List<Term> findall(State state, Term template, Term goal) {
+		// テンプレートとゴールの変数の対応を保つように、まとめて切り離す
+		Complex pair = (Complex) Functor.create("-", template, goal).unbind();
+		if (pool.getParallelism() == 1) {
+			// プロセッサが一つなら、枝に分けても速くならない
+			return solutions(state, pair.get(1), pair.get(0));
+		}
+		try {
+			return pool.invoke(new Branch(state, pair.get(1), pair.get(0), 0));
+		} catch (QueryException e) {
+			// 別のスレッドでスローされた例外は、同じクラスの例外に包み直されることがある
+			while (e.term == Atom.NIL && e.getCause() instanceof QueryException) {
+				e = (QueryException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * 探索木の枝の一つです。
+	 */
+	private static class Branch extends RecursiveTask<List<Term>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final State state;
+		private final Term  goal;
+		private final Term  template;
+		private final int   depth;
+
+		Branch(State state, Term goal, Term template, int depth) {
+			this.state    = state;
+			this.goal     = goal;
+			this.template = template;
+			this.depth    = depth;
+		}
+
+		@Override
+		protected List<Term> compute() {
+			Term goal     = this.goal;
+			Term template = this.template;
+			if (hasCut(goal)) {
+				// カットは他の枝の選択肢も切るので、分けられない
+				return solutions(state, goal, template);
+			}
+			for (int depth = this.depth; ; ++depth) {
+				// 先頭のゴールを取り出す
+				Term first = goal;
+				Term rest  = Atom.TRUE;
+				while (is(first, CONJUNCTION)) {
+					Complex conj = (Complex) first;
+					rest  = conj(conj.get(1), rest);
+					first = conj.get(0);
+				}
+				if (first.equals(Atom.TRUE)) {
+					if (rest.equals(Atom.TRUE)) {
+						ArrayList<Term> results = new ArrayList<Term>();
+						results.add(template);
+						return results;
+					}
+					goal = rest;
+					continue;
+				}
+				if (depth >= MAX_DEPTH || getSurplusQueuedTaskCount() > SURPLUS) {
+					return solutions(state, goal, template);
+				}
+				// 枝は残りのゴールとテンプレートの組(Rest-Template)
+				List<Term> branches = expand(first, Functor.create(SEPARATOR, rest, template));
+				if (branches.size() == 1) {
+					// 選択肢が一つなら、この枝のまま続ける
+					Complex branch = (Complex) branches.get(0);
+					goal     = branch.get(0);
+					template = branch.get(1);
+					continue;
+				}
+				ArrayList<Branch> tasks = new ArrayList<Branch>(branches.size());
+				for (Term branch: branches) {
+					tasks.add(new Branch(state,
+							((Complex) branch).get(0), ((Complex) branch).get(1), depth + 1));
+				}
+				invokeAll(tasks);
+				ArrayList<Term> results = new ArrayList<Term>();
+				for (Branch task: tasks) {
+					results.addAll(task.join());
+				}
+				return results;
+			}
+		}
+
+		// 先頭のゴールfirstを展開し、それぞれの選択肢でのnext(Rest-Template)の複製を返す
+		private List<Term> expand(Term first, Term next) {
+			if (is(first, DISJUNCTION)) {
+				Term a = ((Complex) first).get(0);
+				if (!is(a, IF_THEN) && !is(a, SOFT_IF_THEN)) {
+					// 二つの枝で同じ変数を使うが、それぞれ別のQueryで実行するので共有はしない
+					List<Term> branches = new ArrayList<Term>(2);
+					Complex pair = (Complex) next;
+					branches.add(Functor.create(SEPARATOR, conj(a, pair.get(0)), pair.get(1)));
+					branches.add(Functor.create(SEPARATOR,
+							conj(((Complex) first).get(1), pair.get(0)), pair.get(1)));
+					return branches;
+				}
+			}
+			Variable body = Variable.create();
+			Term clauses = unfold(first, body);
+			if (clauses != null) {
+				Complex pair = (Complex) next;
+				return solutions(state, clauses,
+						Functor.create(SEPARATOR, conj(body, pair.get(0)), pair.get(1)));
+			}
+			return solutions(state, first, next);
+		}
+
+		// 述語の節ごとに、頭部とfirstを単一化して本体をbodyに設定する選言を返す。展開しない述語ならnull
+		private Term unfold(Term first, Variable body) {
+			if (!(first instanceof Functor)) {
+				return null;
+			}
+			Table table = state.getTable(((Functor) first).predicate());
+			if (table == null || table.isEmpty() || table.tabling() != null) {
+				return null;
+			}
+			List<Procedure> rows = table.rows();
+			Term[] alternatives = new Term[rows.size()];
+			boolean facts = true;
+			for (int i = 0; i < alternatives.length; ++i) {
+				if (!(rows.get(i) instanceof Coding)) {
+					return null;
+				}
+				Coding coding = (Coding) rows.get(i);
+				if (hasCut(coding.getBodyTerm())) {
+					return null;
+				}
+				facts &= coding.getBodyTerm().equals(Atom.TRUE);
+				// 節の変数は、ゴールの変数と名前が重ならないように付け替える
+				HashMap<String,Variable> vars = new HashMap<String,Variable>();
+				alternatives[i] = Functor.create(CONJUNCTION,
+						Functor.create("=", first, rename(coding.head, vars)),
+						Functor.create("=", body, rename(coding.getBodyTerm(), vars)));
+			}
+			if (facts) {
+				// 事実だけなら、索引を使って解を求めた方が速い
+				return null;
+			}
+			Term goal = alternatives[alternatives.length - 1];
+			for (int i = alternatives.length - 2; i >= 0; --i) {
+				goal = Functor.create(DISJUNCTION, alternatives[i], goal);
+			}
+			return goal;
+		}
+	}
+
+	/**
+	 * ゴールgoalの全ての解におけるresultの複製を、一つの{@link Query}で求めます。
+	 */
+	static List<Term> solutions(State state, Term goal, Term result) {
+		Variable bridge = Variable.create();
+		Coding coding = Coding.create(state,
+				Functor.create("?-",
+				Functor.create( ",", goal,
+				Functor.create( "=", bridge, result))));
+		int slot = coding.vars().get(bridge.name()).id();
+		Query query = new Query(state, coding);
+		ArrayList<Term> results = new ArrayList<Term>();
+		try {
+			List<Term> values;
+			while ((values = query.ask()) != null) {
+				results.add(values.get(slot));
+			}
+		} catch (QueryException e) {
+			// 例外の項はこのクエリのコールフレームに束縛されているので、切り離しておく
+			throw e.term.isDefinite() ? e: new QueryException(e.term.unbind());
+		} finally {
+			query.close();
+		}
+		return results;
+	}
+
+	private static boolean is(Term term, Predicate predicate) {
+		return term instanceof Complex && ((Complex) term).predicate() == predicate;
+	}
+
+	private static Term conj(Term a, Term b) {
+		if (b.equals(Atom.TRUE)) {
+			return a;
+		}
+		return a.equals(Atom.TRUE) ? b: Functor.create(CONJUNCTION, a, b);
+	}
+
+	// 制御構造の中に、この節やゴール全体を切るカットがあればtrue
+	private static boolean hasCut(Term term) {
+		if (term instanceof Atom) {
+			return ((Atom) term).predicate() == CUT;
+		}
+		if (is(term, CONJUNCTION) || is(term, DISJUNCTION) || is(term, IF_THEN) || is(term, SOFT_IF_THEN)) {
+			return hasCut(((Complex) term).get(0)) || hasCut(((Complex) term).get(1));
+		}
+		return false;
+	}
+
+	// 変数を、他と重複しない名前の変数に付け替える
+	private static Term rename(Term term, HashMap<String,Variable> vars) {
+		if (term instanceof Variable) {
+			if (term == Variable._) {
+				return term;
+			}
+			Variable var = vars.get(((Variable) term).name());
+			if (var == null) {
+				vars.put(((Variable) term).name(), (var = Variable.create()));
+			}
+			return var;
+		}
+		if (term instanceof Functor && !term.isDefinite()) {
+			Functor functor = (Functor) term;
+			Term[] args = new Term[functor.arity()];
+			for (int i = 0; i < args.length; ++i) {
+				args[i] = rename(functor.get(i), vars);
+			}
+			return Functor.create(functor.predicate(), args);
+		}
+		return term;
+	}
+}
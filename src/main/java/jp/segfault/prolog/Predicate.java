@@ -1,31 +1,62 @@
 package jp.segfault.prolog;
 
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
 import jp.segfault.prolog.term.Functor;
 import jp.segfault.prolog.term.Term;
 
 /**
  * Prologの述語です。
+ * <p>関数子の名前とアリティの組(関数子記述子)としても使用します。
+ * {@link #of(String, int)}で取得したものは intern されているので、参照の比較で同値性を判定できます。</p>
  * @author shun
  */
 public class Predicate {
 
-	public static final Predicate        NONE = new Predicate("none", -1);
-	public static final Predicate      CLAUSE = new Predicate(  ":-",  2);
-	public static final Predicate   DIRECTIVE = new Predicate(  ":-",  1);
-	public static final Predicate       QUERY = new Predicate(  "?-",  1);
-	public static final Predicate        RULE = new Predicate( "-->",  2);
-	public static final Predicate CONJUNCTION = new Predicate(   ",",  2);
-	public static final Predicate DISJUNCTION = new Predicate(   ";",  2);
-	public static final Predicate     IF_THEN = new Predicate(  "->",  2);
-	public static final Predicate         CUT = new Predicate(   "!",  0);
-	public static final Predicate        CALL = new Predicate("call",  1);
+	// intern 済みの述語の表
+	private static final WeakHashMap<Predicate,WeakReference<Predicate>> predicates = new WeakHashMap<Predicate,WeakReference<Predicate>>();
+
+	public static final Predicate        NONE = of("none", -1);
+	public static final Predicate      CLAUSE = of(  ":-",  2);
+	public static final Predicate   DIRECTIVE = of(  ":-",  1);
+	public static final Predicate       QUERY = of(  "?-",  1);
+	public static final Predicate        RULE = of( "-->",  2);
+	public static final Predicate CONJUNCTION = of(   ",",  2);
+	public static final Predicate DISJUNCTION = of(   ";",  2);
+	public static final Predicate     IF_THEN = of(  "->",  2);
+	public static final Predicate         CUT = of(   "!",  0);
+	public static final Predicate        CALL = of("call",  1);
+	public static final Predicate        CONS = of(   ".",  2);
+	public static final Predicate   INDICATOR = of(   "/",  2);
 	
 	public final String id;
 	public final int arity;
 	
-	public Predicate(String id, int arity) {
+	// 表の検索に使われるので、予め計算しておく
+	private final int hash;
+	
+	// 同じ名前とアリティのものが一つだけになるように、{@link #of(String, int)}からだけ作成する
+	private Predicate(String id, int arity) {
 		this.id    = id;
 		this.arity = arity;
+		this.hash  = id.hashCode() * 31 + arity;
+	}
+
+	/**
+	 * 指定した名前とアリティの、intern された述語を返します。
+	 */
+	public static Predicate of(String id, int arity) {
+		Predicate key = new Predicate(id, arity);
+		synchronized (predicates) {
+			WeakReference<Predicate> ref = predicates.get(key);
+			Predicate predicate = ref != null ? ref.get(): null;
+			if(predicate == null) {
+				predicates.put(key, new WeakReference<Predicate>(key));
+				predicate = key;
+			}
+			return predicate;
+		}
 	}
 
 	public static Predicate of(String notation) {
@@ -33,16 +64,16 @@ public class Predicate {
 		if(slash == -1) {
 			throw new IllegalArgumentException("slash == -1");
 		}
-		return new Predicate(notation.substring(0, slash),
+		return of(notation.substring(0, slash),
 				Integer.valueOf(notation.substring(slash + 1)));
 	}
 
 	public static Predicate of(Term term) {
 		Functor functor = (Functor) term;
-		if(!new Predicate("/", 2).equals(functor.predicate())) {
+		if(!INDICATOR.equals(functor.predicate())) {
 			return null;
 		}
-		return new Predicate(
+		return of(
 				functor.get(0).   atom().value(),
 				functor.get(1).numeric().value().intValue());
 	}
@@ -54,16 +85,19 @@ public class Predicate {
 	
 	@Override
 	public boolean equals(Object o) {
+		if(this == o) {
+			return true;
+		}
 		if(o instanceof Predicate) {
 			Predicate that = (Predicate) o;
-			return arity == that.arity && id.equals(that.id);
+			return hash == that.hash && arity == that.arity && id.equals(that.id);
 		}
 		return false;
 	}
 
 	@Override
 	public int hashCode() {
-		return id.hashCode() * arity;
+		return hash;
 	}
 
 	public Functor toFunctor() {
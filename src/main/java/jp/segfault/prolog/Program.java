@@ -0,0 +1,297 @@
+package jp.segfault.prolog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import jp.segfault.prolog.procedure.Coding;
+import jp.segfault.prolog.procedure.Procedure;
+import jp.segfault.prolog.term.Atom;
+import jp.segfault.prolog.term.Comp;
+import jp.segfault.prolog.term.Complex;
+import jp.segfault.prolog.term.Numeric;
+import jp.segfault.prolog.term.Term;
+import jp.segfault.prolog.term.Var;
+import jp.segfault.prolog.term.Variable;
+
+/**
+ * 述語の全ての節を、フラットな命令列にコンパイルしたものです。
+ * <p>WAMに倣い、第一引数による節の選択(switch)、候補の節の列挙(try/retry/trust)、
+ * 頭部の引数レジスタとの単一化(get/unify)を命令として持ちます。
+ * 本体のゴールの呼び出し(call/execute)は、節の{@link Coding#body}を継続として返すことで行います。</p>
+ * <p>Prolog Flag の compile_predicates が yes のとき、{@link Query}はこの命令列で述語を実行します。</p>
+ * @author shun
+ */
+public class Program {
+
+	// 命令コード (オペランド)
+	public static final int SWITCH         =  0; // a, map, Lall, Lmiss
+	public static final int TRY            =  1; // L
+	public static final int RETRY          =  2; // L
+	public static final int TRUST          =  3; // L
+	public static final int JUMP           =  4; // L
+	public static final int FAIL           =  5; //
+	public static final int ALLOCATE       =  6; // clause
+	public static final int GET_VARIABLE   =  7; // slot, a
+	public static final int GET_VALUE      =  8; // var, a
+	public static final int GET_CONSTANT   =  9; // constant, a
+	public static final int GET_STRUCTURE  = 10; // term, a, end
+	public static final int GET_TERM       = 11; // term, a
+	public static final int UNIFY_VARIABLE = 12; // slot
+	public static final int UNIFY_VALUE    = 13; // var
+	public static final int UNIFY_CONSTANT = 14; // constant
+	public static final int UNIFY_VOID     = 15; //
+	public static final int UNIFY_TERM     = 16; // term
+	public static final int PROCEED        = 17; // clause
+
+	private static final String[] NAMES = {
+		"switch", "try", "retry", "trust", "jump", "fail", "allocate",
+		"get_variable", "get_value", "get_constant", "get_structure", "get_term",
+		"unify_variable", "unify_value", "unify_constant", "unify_void", "unify_term",
+		"proceed",
+	};
+
+	private static final int[] SIZES = {
+		5, 2, 2, 2, 2, 1, 2,
+		3, 3, 3, 4, 3,
+		2, 2, 2, 1, 2,
+		2,
+	};
+
+	/**
+	 * 命令列です。先頭が述語の入り口です。
+	 */
+	public final int[] code;
+
+	/**
+	 * 命令から参照される定数(節、項、switchの表)です。
+	 */
+	public final Object[] constants;
+
+	private Program(int[] code, Object[] constants) {
+		this.code      = code;
+		this.constants = constants;
+	}
+
+	/**
+	 * テーブルの全ての行をコンパイルします。
+	 * <p>ユーザ定義の節でない行を含む場合はnullを返します。</p>
+	 */
+	public static Program compile(Table table) {
+		List<Procedure> rows = table.rows();
+		Coding[] clauses = new Coding[rows.size()];
+		for(int i = 0; i < clauses.length; ++i) {
+			Procedure procedure = rows.get(i);
+			if(!(procedure instanceof Coding) || ((Coding) procedure).head == null) {
+				return null;
+			}
+			clauses[i] = (Coding) procedure;
+		}
+		return new Assembler(clauses, table.predicate().arity).assemble();
+	}
+
+	/**
+	 * 命令列を読める形にします。
+	 */
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		for(int pc = 0; pc < code.length; pc += SIZES[code[pc]]) {
+			builder.append(String.format("%4d: %-15s", pc, NAMES[code[pc]]));
+			for(int i = 1; i < SIZES[code[pc]]; ++i) {
+				builder.append(i == 1 ? " ": ", ").append(code[pc + i]);
+			}
+			builder.append("\n");
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * 節の並びから命令列を生成します。
+	 * @author shun
+	 */
+	private static class Assembler {
+
+		private final Coding[] clauses;
+		private final int      arity;
+
+		private int[] code = new int[64];
+		private int   size = 0;
+
+		private final ArrayList<Object> constants = new ArrayList<Object>();
+
+		// 節の入り口を参照している命令のオペランドの位置と、その節の番号
+		private final ArrayList<int[]> fixups = new ArrayList<int[]>();
+
+		Assembler(Coding[] clauses, int arity) {
+			this.clauses = clauses;
+			this.arity   = arity;
+		}
+
+		Program assemble() {
+			ArrayList<Integer> all = new ArrayList<Integer>();
+			for(int i = 0; i < clauses.length; ++i) {
+				all.add(i);
+			}
+			if(arity > 0 && clauses.length > 1) {
+				// 第一引数のキーごとに候補の節をまとめる (Table.Index と同じ規則)
+				ArrayList<Integer> variables = new ArrayList<Integer>();
+				LinkedHashMap<Object,ArrayList<Integer>> buckets = new LinkedHashMap<Object,ArrayList<Integer>>();
+				for(int i = 0; i < clauses.length; ++i) {
+					Object key = Table.key(clauses[i].head.get(0));
+					if(key == null) {
+						variables.add(i);
+						for(ArrayList<Integer> bucket: buckets.values()) {
+							bucket.add(i);
+						}
+						continue;
+					}
+					ArrayList<Integer> bucket = buckets.get(key);
+					if(bucket == null) {
+						buckets.put(key, (bucket = new ArrayList<Integer>(variables)));
+					}
+					bucket.add(i);
+				}
+				if(!buckets.isEmpty()) {
+					HashMap<Object,Integer> table = new HashMap<Object,Integer>();
+					int at = size;
+					emit(SWITCH, 0, constant(table), 0, 0);
+					code[at + 3] = size; chain(all);
+					code[at + 4] = size; chain(variables);
+					for(Map.Entry<Object,ArrayList<Integer>> e: buckets.entrySet()) {
+						table.put(e.getKey(), size);
+						chain(e.getValue());
+					}
+					return clauses();
+				}
+			}
+			chain(all);
+			return clauses();
+		}
+
+		private Program clauses() {
+			int[] entries = new int[clauses.length];
+			for(int i = 0; i < clauses.length; ++i) {
+				entries[i] = size;
+				clause(clauses[i]);
+			}
+			for(int[] fixup: fixups) {
+				code[fixup[0]] = entries[fixup[1]];
+			}
+			return new Program(Arrays.copyOf(code, size), constants.toArray());
+		}
+
+		// 候補の節を順に試す命令を生成する
+		private void chain(List<Integer> candidates) {
+			if(candidates.isEmpty()) {
+				emit(FAIL);
+				return;
+			}
+			if(candidates.size() == 1) {
+				jump(JUMP, candidates.get(0));
+				return;
+			}
+			jump(TRY, candidates.get(0));
+			for(int i = 1; i < candidates.size() - 1; ++i) {
+				jump(RETRY, candidates.get(i));
+			}
+			jump(TRUST, candidates.get(candidates.size() - 1));
+		}
+
+		private void jump(int opcode, int clause) {
+			emit(opcode, 0);
+			fixups.add(new int[]{ size - 1, clause });
+		}
+
+		private void clause(Coding clause) {
+			int id = constant(clause);
+			emit(ALLOCATE, id);
+			HashSet<Integer> seen = new HashSet<Integer>();
+			for(int a = 0; a < clause.head.arity(); ++a) {
+				Term arg = clause.head.get(a);
+				if(arg == Variable._) {
+					continue;
+				}
+				if(arg instanceof Var) {
+					Var var = (Var) arg;
+					if(seen.add(var.id)) {
+						emit(GET_VARIABLE, var.id, a);
+					}
+					else {
+						emit(GET_VALUE, constant(var), a);
+					}
+					continue;
+				}
+				if(isConstant(arg)) {
+					emit(GET_CONSTANT, constant(arg), a);
+					continue;
+				}
+				if(arg instanceof Complex) {
+					Complex complex = (Complex) arg;
+					int at = size;
+					emit(GET_STRUCTURE, constant(complex), a, 0);
+					for(int i = 0; i < complex.arity(); ++i) {
+						Term sub = complex.get(i);
+						if(sub == Variable._) {
+							emit(UNIFY_VOID);
+						}
+						else if(sub instanceof Var) {
+							Var var = (Var) sub;
+							if(seen.add(var.id)) {
+								emit(UNIFY_VARIABLE, var.id);
+							}
+							else {
+								emit(UNIFY_VALUE, constant(var));
+							}
+						}
+						else if(isConstant(sub)) {
+							emit(UNIFY_CONSTANT, constant(sub));
+						}
+						else {
+							// 入れ子の構造は汎用の単一化に任せる
+							mark(sub, seen);
+							emit(UNIFY_TERM, constant(sub));
+						}
+					}
+					code[at + 3] = size;
+					continue;
+				}
+				mark(arg, seen);
+				emit(GET_TERM, constant(arg), a);
+			}
+			emit(PROCEED, id);
+		}
+
+		// アトム、数値と基底項の複合項は、値の比較だけで単一化できる
+		private boolean isConstant(Term term) {
+			return term instanceof Atom || term instanceof Numeric
+					|| term instanceof Comp && ((Comp) term).isGround();
+		}
+
+		// 汎用の単一化に任せる項に含まれる変数は、以降の出現で値を上書きしないようにする
+		private void mark(Term term, HashSet<Integer> seen) {
+			for(Variable var: term.extract()) {
+				if(var instanceof Var) {
+					seen.add(((Var) var).id);
+				}
+			}
+		}
+
+		private int constant(Object o) {
+			constants.add(o);
+			return constants.size() - 1;
+		}
+
+		private void emit(int ...instruction) {
+			if(size + instruction.length > code.length) {
+				code = Arrays.copyOf(code, (size + instruction.length) * 2);
+			}
+			System.arraycopy(instruction, 0, code, size, instruction.length);
+			size += instruction.length;
+		}
+	}
+}
@@ -1,9 +1,13 @@
 package jp.segfault.prolog;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
 
+import jp.segfault.prolog.code.Arithmetic;
 import jp.segfault.prolog.code.Call;
 import jp.segfault.prolog.code.Choice;
 import jp.segfault.prolog.code.Code;
@@ -12,10 +16,13 @@ import jp.segfault.prolog.code.Goal;
 import jp.segfault.prolog.code.Noop;
 import jp.segfault.prolog.code.Result;
 import jp.segfault.prolog.code.Select;
+import jp.segfault.prolog.procedure.Coding;
 import jp.segfault.prolog.procedure.Procedure;
 import jp.segfault.prolog.term.Atom;
+import jp.segfault.prolog.term.Complex;
+import jp.segfault.prolog.term.Numeric;
 import jp.segfault.prolog.term.Term;
-import jp.segfault.prolog.util.UnmodifiableIterator;
+import jp.segfault.prolog.term.Variable;
 import static jp.segfault.prolog.code.Result.*;
 
 /**
@@ -34,18 +41,53 @@ public class Query {
 	 */
 	public Binding callee;
 	
-	// ChoicePoinのリンクリスト。ここに入っているのが一番上になる。
-	private              ChoicePoint choicePoint = GUARD;
-	private static final ChoicePoint GUARD       = new ChoicePoint(null, null, -1, false, null);
+	// ChoicePointのスタック。stack[0]は番兵で、stack[height-1]が一番上になる。
+	// popしたChoicePointは配列に残しておき、次のpushで再利用する
+	private ChoicePoint[] stack = new ChoicePoint[16];
+	private int           height;
+	private ChoicePoint   choicePoint;
+
+	private final Trail trail = new Trail();
+
+	/**
+	 * ヒープセグメントの最大の大きさ(要素数)です。これを超えたコールフレームは個別に割り当てます。
+	 */
+	public static final int HEAP_LIMIT = 1 << 18;
+
+	// コールフレームのローカル領域を割り当てるヒープセグメント(Prolog Flag の heap_segment が yes のとき)。
+	// heapTop より上は使われていない。バックトラッキングでは ChoicePoint#heapTop まで戻すだけで解放する
+	private Term[] heap;
+	private int    heapTop;
 
 	private int ancestry;
 	private Code next;
 
+	// コードを実行するVisitor。トレースする場合はtracerを使う
+	private final Dispatcher dispatcher = new Dispatcher();
+	private final Dispatcher tracer     = new Tracer();
+	private boolean compile;
+	// 引数のインデックスの使われ方を数える(Prolog Flag の index_statistics)
+	private boolean statistics;
+
+	// 評価中のテーブル化した述語の呼び出し(古いものから順)と、これまでに解の表に追加された解の数、
+	// 評価中の表から解を受け取った呼び出しの数
+	final ArrayList<Tabling.Entry> producers = new ArrayList<Tabling.Entry>();
+	int answers;
+	int consumers;
+
+	// 節の頭部の単一化に使い回すUnifier
+	private Unifier unifier;
+
+	// 他のスレッドから中断を求められた
+	private volatile boolean cancelled;
+
 	/**
 	 * 新たにクエリを作成します。
 	 */
 	public Query(State state, Procedure entry) {
-		this.state = state;
+		this.state   = state;
+		this.unifier = new Unifier(this);
+		pushChoicePoint(-1, false); // 番兵
 		next = call(entry, new Term[]{}, null, 0);
 	}
 	
@@ -70,137 +112,129 @@ public class Query {
 	/**
 	 * バックトラッキングすることが出来るかどうかを返します。
 	 */
+	/**
+	 * catch/3 が、ゴールから例外がスローされた時に戻る位置を記録します。
+	 * <p>候補を持たないChoicePointをpushするので、バックトラックではそのまま取り除かれます。
+	 * これより後の束縛は全てトレイルに記録されるので、例外から回復する時に元に戻せます。</p>
+	 */
+	public void setCatchPoint() {
+		pushChoicePoint(ancestry, false).catches = true;
+	}
+
+	/**
+	 * 残っている選択肢を全て捨てます。以後、{@link #ask()}はnullを返します。
+	 * <p>全ての解を求めずにクエリを使い終える場合に呼び出します。
+	 * 選択肢が使っている資源(&amp;/2 が実行しているスレッドなど)は、この時に解放されます。</p>
+	 */
+	public void close() {
+		popChoicePoints(1);
+		next = Fail;
+	}
+
 	public boolean canBacktrack() {
-		for (ChoicePoint e = choicePoint; e.parent != null; e = e.parent) {
-			if (e.iterator.hasNext()) {
+		for (int i = height - 1; i > 0; --i) {
+			if (stack[i].hasNext()) {
 				return true;
 			}
 		}
 		return false;
 	}
 
+	/**
+	 * 束縛したスロットを、一番上のChoicePointより古いコールフレームのものであればトレイルに記録します。
+	 */
+	void trail(Binding frame, int slot) {
+		if (frame.ordinal <= choicePoint.ancestry) {
+			trail.push(frame, slot);
+		}
+	}
+
+	/**
+	 * コールフレームを作成します。ヒープセグメントを使う場合は、ローカル領域をそこから割り当てます。
+	 */
+	public Binding newBinding(int ancestry, Procedure procedure, Code next, Binding caller) {
+		int size = procedure.locals() * 2;
+		// ChoicePointが番兵だけのときに作ったコールフレームは、バックトラッキングで解放されることがない
+		if (heap == null || size == 0 || height == 1) {
+			return new Binding(ancestry, procedure, next, caller, null);
+		}
+		if (heapTop + size > heap.length) {
+			if (heapTop + size > HEAP_LIMIT) {
+				return new Binding(ancestry, procedure, next, caller, null);
+			}
+			// 古い配列は、その上のコールフレームが使い終わるまで残る。
+			// 位置はそのまま引き継ぐので、ChoicePointが覚えている heapTop も有効なまま
+			heap = new Term[Math.min(Math.max(heap.length * 2, heapTop + size), HEAP_LIMIT)];
+		}
+		Arrays.fill(heap, heapTop, heapTop + size, null);
+		Binding binding = new Binding(ancestry, procedure, next, caller, heap, heapTop);
+		heapTop += size;
+		return binding;
+	}
+
+	/**
+	 * 節の頭部の単一化などに使い回す{@link Unifier}を取得します。
+	 * <p>入れ子にして使うことは出来ません。使用後は必ずcommitかrollbackしてください。</p>
+	 */
+	public Unifier getUnifier() {
+		return unifier;
+	}
+
+	/**
+	 * クエリの実行を中断します。他のスレッドから呼び出すことが出来ます。
+	 * <p>実行中のクエリは、次に述語を呼び出すかバックトラッキングする時に{@link CancellationException}をスローします。
+	 * この例外は catch/3 では捕捉できません。中断したクエリは再開できません。</p>
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	private void checkCancelled() {
+		if (cancelled) {
+			throw new CancellationException("query cancelled");
+		}
+	}
+
 	/**
 	 * クエリを実行し、その結果を返します。
 	 */
 	public List<Term> ask() {
 		final boolean TRACE = "yes".equals(state.getFlag("trace_call_frame"));
+		final Code.Visitor<Code> visitor = TRACE ? tracer: dispatcher;
+		compile    = "yes".equals(state.getFlag("compile_predicates"));
+		statistics = "yes".equals(state.getFlag("index_statistics"));
+		if ("yes".equals(state.getFlag("heap_segment")) != (heap != null)) {
+			heap    = heap == null ? new Term[1024]: null;
+			heapTop = 0;
+		}
+		unifier = new Unifier(this); // Flagの変更を反映する
 	outer:
 		for (;;) {
 			try {
 			while (next == Fail) { // バックトラッキング
-				if (choicePoint.parent == null) {
+				if (height == 1) {
 					return null; // 失敗
 				}
+				checkCancelled();
 				if (TRACE) trace("fail.");
 				// System.err.println("バックトラッキングが発生！:"+ choicePoints.peek().revision);
-				choicePoint.undo();
-				if (choicePoint.iterator.hasNext()) { // 実行時の節削除(abolish)に対応
-					callee = choicePoint.callee;
-					  next = choicePoint.iterator.next();
-					if (choicePoint.local || choicePoint.iterator.hasNext()) {
+				ChoicePoint top = choicePoint;
+				trail.undo(top.mark);
+				heapTop = top.heapTop;
+				if (top.hasNext()) { // 実行時の節削除(abolish)に対応
+					callee = top.callee;
+					  next = resume(top);
+					// resume()内で新たなChoicePointがpushされた場合は、そちらが一番上になる
+					if (top != choicePoint || top.hasNext()) {
 						continue;
 					}
-					// next()内でもChoicePoint#add(VarRef)が発生するので、
-					// ここで!hasNext()になっていたとしても、ただpopするだけでは、正しくundo()されない為にバグる
-					choicePoint.parent.drain(choicePoint);
+					// resume()内の束縛もトレイルに記録されているので、popする時に下のChoicePointに引き継ぐ
 				}
-				choicePoint = choicePoint.parent;
+				popChoicePoints(height - 1);
 			}
 			// 次のコードを実行する
 			// System.err.println("Query.next: next: "+ next);
-			next = next.accept(new Code.Visitor<Code>() {
-				
-				Code callTable(final Table table, final Goal goal) {
-					final List<Procedure> rows;
-					if (table == null) {
-						throw QueryException.existence_error(Atom.PREDICATE, Atom.NIL);
-					}
-					if ((rows = table.rows()).isEmpty()) {
-						throw QueryException.existence_error(
-								Atom.PREDICATE, table.predicate().toFunctor());
-					}
-					if (rows.size() > 1) {
-						final int revision = Query.this.ancestry;
-						setChoicePoint(new UnmodifiableIterator<Code>()
-						{	
-							int i = 1;
-							
-							@Override
-							public boolean hasNext() { return i < rows.size(); }
-
-							@Override
-							public Code next() {
-								return call(rows.get(i++), goal, revision);
-							}
-						}, revision + 1, false);
-					}
-					return call(rows.get(0), goal);
-				}
-
-				@Override
-				public Code visit(Result code) {
-					return code;
-				}
-				
-				@Override
-				public Code visit(Select code) {
-					if (TRACE) {
-						StringBuilder builder = new StringBuilder(code.table.predicate().id + "(");
-						if (code.args.length > 0) {
-							for (Term arg: code.args) {
-								builder.append(arg.bind(callee).unbind().toString(state));
-								builder.append(", ");
-							}
-							builder.setLength(builder.length() - 2);
-						}
-						builder.append(")");
-						trace("call: "+ builder);
-					}
-					return callTable(code.table, code);
-				}
-
-				@Override
-				public Code visit(final Choice code) {
-					setChoicePoint(new UnmodifiableIterator<Code>()
-					{	
-						int i = 1;
-
-						@Override
-						public boolean hasNext() { return i < code.codes.length; }
-
-						@Override
-						public Code next() { return code.codes[i++]; }
-					}, code.local);
-					return code.codes[0];
-				}
-				
-				@Override
-				public Code visit(Cut code) {
-					ChoicePoint top = choicePoint;
-					while (choicePoint.ancestry >= callee.ancestry) {
-						if (code.local && choicePoint.local) {
-							choicePoint = choicePoint.parent;
-							break;
-						}
-						choicePoint = choicePoint.parent;
-					}
-					if (choicePoint.parent != null) {
-						choicePoint.drain(top);
-					}
-					return code.next;
-				}
-
-				@Override
-				public Code visit(Call code) {
-					return call(code.procedure, code);
-				}
-
-				@Override
-				public Code visit(Noop code) {
-					return code.next;
-				}
-				
-			});
+			next = next.accept(visitor);
 			if (next == True) {
 				// エントリーポイントまで戻ってきた
 				if (callee.caller == null) {
@@ -217,6 +251,18 @@ public class Query {
 			// 例外の捕捉
 			} catch (QueryException e) {
 				do {
+					int catchPoint = catchPoint(callee);
+					if (catchPoint < 0) {
+						continue;
+					}
+					// catch/3 を呼び出した時点まで、ゴールの中の束縛を元に戻し、ゴールが残した選択肢を捨てる。
+					// スローされた項はゴールの中の束縛を参照しているかもしれないので、先に切り離しておく
+					if (!e.term.isDefinite()) {
+						e = new QueryException(e.term.unbind());
+					}
+					trail.undo(stack[catchPoint].mark);
+					heapTop = stack[catchPoint].heapTop;
+					popChoicePoints(catchPoint);
 					if ((next = callee.procedure.catches(this, e)) != null) {
 						continue outer;
 					}
@@ -226,6 +272,157 @@ public class Query {
 		}
 	}
 
+	/**
+	 * コードを実行し、次に実行するコードを返します。
+	 * <p>一つのQueryで使い回すので、状態を持ってはいけません。</p>
+	 */
+	private class Dispatcher implements Code.Visitor<Code> {
+
+		Code callTable(Table table, Goal goal) {
+			checkCancelled();
+			if (table == null) {
+				throw QueryException.existence_error(Atom.PREDICATE, Atom.NIL);
+			}
+			if (table.isEmpty()) {
+				throw QueryException.existence_error(
+						Atom.PREDICATE, table.predicate().toFunctor());
+			}
+			// テーブル化した述語は解の表を経由する
+			if (table.tabling() != null && !(goal instanceof Tabling.Evaluation)) {
+				return call(table.tabling(), goal);
+			}
+			if (compile) {
+				Program program = table.program();
+				if (program != null) {
+					// 引数レジスタは変数を辿った値にしておく。呼び出し側の変数への参照を
+					// そのまま節のスロットに入れると、末尾呼び出しでもコールフレームが解放されない
+					Term[] args = new Term[goal.args.length];
+					for (int i = 0; i < args.length; ++i) {
+						args[i] = unifier.resolve(goal.args[i].bind(callee));
+					}
+					return execute(program, 0, args, goal, ancestry, null);
+				}
+			}
+			// 引数のインデックスで候補の節を絞り込み、呼び出した時点の世代で生きていた節だけを試す
+			Table.Rows rows = table.select(goal.args, callee, statistics);
+			int first = rows.next(0);
+			if (first == rows.size()) {
+				return Fail;
+			}
+			int second = rows.next(first + 1);
+			if (second < rows.size()) {
+				ChoicePoint choicePoint = pushChoicePoint(ancestry + 1, false);
+				choicePoint.rows     = rows;
+				choicePoint.goal     = goal;
+				choicePoint.revision = ancestry;
+				choicePoint.index    = second;
+			}
+			return call(rows.get(first), goal);
+		}
+
+		@Override
+		public Code visit(Result code) {
+			return code;
+		}
+		
+		@Override
+		public Code visit(Select code) {
+			return callTable(code.table, code);
+		}
+
+		@Override
+		public Code visit(Choice code) {
+			ChoicePoint choicePoint = pushChoicePoint(ancestry, code.local);
+			choicePoint.codes = code.codes;
+			choicePoint.index = 1;
+			return code.codes[0];
+		}
+		
+		@Override
+		public Code visit(Cut code) {
+			int height = Query.this.height;
+			while (stack[height - 1].ancestry >= callee.ancestry) {
+				if (stack[--height].local && code.local) {
+					break;
+				}
+			}
+			popChoicePoints(height);
+			return code.next;
+		}
+
+		@Override
+		public Code visit(Call code) {
+			return call(code.procedure, code);
+		}
+
+		@Override
+		public Code visit(Noop code) {
+			return code.next;
+		}
+
+		@Override
+		public Code visit(Arithmetic code) {
+			Term[] args = code.args;
+			if (code.operator == Arithmetic.Operator.IS) {
+				Numeric value = ArithmeticExpressionEvaluator.evaluate(args[1], callee);
+				if (unifier.exec(args[0], callee, value, null)) {
+					unifier.commit(Query.this);
+					return code.next;
+				}
+				return Fail;
+			}
+			int c = ArithmeticExpressionEvaluator.compare(args[0], callee, args[1], callee);
+			return code.operator.test(c) ? code.next: Fail;
+		}
+	}
+
+	/**
+	 * 呼び出しをトレースしながらコードを実行します。
+	 */
+	private class Tracer extends Dispatcher {
+
+		@Override
+		public Code visit(Select code) {
+			StringBuilder builder = new StringBuilder(code.table.predicate().id + "(");
+			if (code.args.length > 0) {
+				for (Term arg: code.args) {
+					builder.append(arg.bind(callee).unbind().toString(state));
+					builder.append(", ");
+				}
+				builder.setLength(builder.length() - 2);
+			}
+			builder.append(")");
+			trace("call: "+ builder);
+			return super.visit(code);
+		}
+
+		@Override
+		public Code visit(Arithmetic code) {
+			trace("call: "+ code.operator.predicate.id +"("+ code.args[0].bind(callee).unbind().toString(state)
+					+", "+ code.args[1].bind(callee).unbind().toString(state) +")");
+			return super.visit(code);
+		}
+	}
+
+	/**
+	 * ChoicePointの次の候補を実行します。
+	 */
+	private Code resume(ChoicePoint choicePoint) {
+		if (choicePoint.iterator != null) {
+			return choicePoint.iterator.next();
+		}
+		if (choicePoint.rows != null) {
+			int i = choicePoint.index;
+			choicePoint.index = choicePoint.rows.next(i + 1);
+			return call(choicePoint.rows.get(i), choicePoint.goal, choicePoint.revision);
+		}
+		if (choicePoint.codes != null) {
+			return choicePoint.codes[choicePoint.index++];
+		}
+		return execute(choicePoint.program, choicePoint.index,
+				choicePoint.args, choicePoint.goal, choicePoint.revision, choicePoint);
+	}
+
 	private Code call(Procedure procedure, Goal goal) {
 		return call(procedure, goal.args, goal.next, ancestry);
 	}
@@ -244,8 +441,193 @@ public class Query {
 		return procedure.call(this, (ancestry = revision + 1), caller, next, args);
 	}
 	
+	/**
+	 * コンパイル済みの述語を、指定した位置の命令から実行します。
+	 * @param args     引数レジスタ(呼び出し側のコールフレームで実体化済み)
+	 * @param revision 呼び出し時のancestry
+	 * @param resume   実行中のtry/retry/trustのChoicePoint
+	 */
+	private Code execute(Program program, int pc,
+			Term[] args, Goal goal, int revision, ChoicePoint resume)
+	{
+		final int[]    code      = program.code;
+		final Object[] constants = program.constants;
+		final Unifier  unifier   = this.unifier;
+		Complex structure = null;
+		int     position  = 0;
+		for (;;) {
+			switch (code[pc]) {
+			case Program.SWITCH: {
+				Object key = Table.key(args[code[pc+1]]);
+				if (key == null) {
+					pc = code[pc+3];
+					break;
+				}
+				@SuppressWarnings("unchecked")
+				Integer target = ((Map<Object,Integer>) constants[code[pc+2]]).get(key);
+				pc = target != null ? target: code[pc+4];
+				break;
+			}
+			case Program.TRY:
+				resume = pushChoicePoint(revision + 1, false);
+				resume.program  = program;
+				resume.args     = args;
+				resume.goal     = goal;
+				resume.revision = revision;
+				resume.index    = pc + 2;
+				pc = code[pc+1];
+				break;
+			case Program.RETRY:
+				resume.index = pc + 2;
+				pc = code[pc+1];
+				break;
+			case Program.TRUST:
+				resume.index = -1;
+				pc = code[pc+1];
+				break;
+			case Program.JUMP:
+				pc = code[pc+1];
+				break;
+			case Program.FAIL:
+				return Fail;
+			case Program.ALLOCATE: {
+				// call(Procedure, Term[], Code, int) と同じくコールフレームを作成する
+				Code next = goal.next;
+				if (next == True && callee.caller != null) {
+					  next = callee.next;
+					callee = callee.caller;
+				}
+				callee = newBinding((ancestry = revision + 1),
+						(Coding) constants[code[pc+1]], next, callee);
+				pc += 2;
+				break;
+			}
+			case Program.GET_VARIABLE:
+				if (args[code[pc+2]] != Variable._) {
+					callee.setSlot(code[pc+1], args[code[pc+2]]);
+				}
+				pc += 3;
+				break;
+			case Program.GET_VALUE:
+				if (!unifier.exec((Term) constants[code[pc+1]], callee, args[code[pc+2]], null)) {
+					unifier.rollback();
+					return Fail;
+				}
+				pc += 3;
+				break;
+			case Program.GET_CONSTANT:
+				if (!unifier.unifyConstant((Term) constants[code[pc+1]], args[code[pc+2]])) {
+					return Fail;
+				}
+				pc += 3;
+				break;
+			case Program.GET_STRUCTURE: {
+				Complex head = (Complex) constants[code[pc+1]];
+				Term    arg  = args[code[pc+2]];
+				Term    term = unifier.resolve(arg);
+				if (term instanceof Complex) { // 読み込みモード
+					structure = (Complex) term;
+					position  = 0;
+					if (structure.predicate() != head.predicate()) {
+						unifier.rollback();
+						return Fail;
+					}
+					pc += 4;
+					break;
+				}
+				// 変数などは汎用の単一化に任せて、後続の unify_* を飛ばす
+				if (!unifier.exec(arg, null, head, callee)) {
+					return Fail;
+				}
+				pc = code[pc+3];
+				break;
+			}
+			case Program.GET_TERM:
+				if (!unifier.exec(args[code[pc+2]], null, (Term) constants[code[pc+1]], callee)) {
+					return Fail;
+				}
+				pc += 3;
+				break;
+			case Program.UNIFY_VARIABLE: {
+				Term sub = structure.get(position++);
+				if (sub != Variable._) {
+					callee.setSlot(code[pc+1], sub);
+				}
+				pc += 2;
+				break;
+			}
+			case Program.UNIFY_VALUE:
+				if (!unifier.exec((Term) constants[code[pc+1]], callee, structure.get(position++), null)) {
+					return Fail;
+				}
+				pc += 2;
+				break;
+			case Program.UNIFY_CONSTANT:
+				if (!unifier.unifyConstant((Term) constants[code[pc+1]], structure.get(position++))) {
+					return Fail;
+				}
+				pc += 2;
+				break;
+			case Program.UNIFY_VOID:
+				position++;
+				pc += 1;
+				break;
+			case Program.UNIFY_TERM:
+				if (!unifier.exec((Term) constants[code[pc+1]], callee, structure.get(position++), null)) {
+					return Fail;
+				}
+				pc += 2;
+				break;
+			case Program.PROCEED:
+				unifier.commit(this);
+				return ((Coding) constants[code[pc+1]]).body;
+			default:
+				throw new IllegalStateException("opcode: "+ code[pc]);
+			}
+		}
+	}
+
 	private void setChoicePoint(Iterator<Code> iterator, int snapshot, boolean local) {
-		choicePoint = new ChoicePoint(choicePoint, callee, snapshot, local, iterator);
+		pushChoicePoint(snapshot, local).iterator = iterator;
+	}
+
+	// 候補を持たないChoicePointをpushする。可能なら使い終わったものを再利用する
+	private ChoicePoint pushChoicePoint(int snapshot, boolean local) {
+		if (height == stack.length) {
+			stack = Arrays.copyOf(stack, height * 2);
+		}
+		ChoicePoint choicePoint = stack[height];
+		if (choicePoint == null) {
+			stack[height] = choicePoint = new ChoicePoint();
+		}
+		choicePoint.reset(callee, snapshot, local, trail.size());
+		choicePoint.heapTop = heapTop;
+		height++;
+		return this.choicePoint = choicePoint;
+	}
+
+	// コールフレームframeが{@link #setCatchPoint()}で記録した位置(ChoicePointの高さ)を返す。無ければ-1
+	private int catchPoint(Binding frame) {
+		for (int i = height - 1; i > 0; --i) {
+			if (stack[i].catches && stack[i].callee == frame) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// 指定した高さまでChoicePointをpopする。popしたChoicePointより後の束縛の記録のうち、
+	// 残ったChoicePointに戻った時に元に戻す必要のあるものだけを残す
+	private void popChoicePoints(int height) {
+		if (height >= this.height) {
+			return;
+		}
+		choicePoint = stack[height - 1];
+		trail.tidy(stack[height].mark, choicePoint.ancestry);
+		for (int i = height; i < this.height; ++i) {
+			stack[i].clear();
+		}
+		this.height = height;
 	}
 
 	private void trace(Object msg) {
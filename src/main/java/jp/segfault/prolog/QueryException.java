@@ -47,6 +47,14 @@ public class QueryException extends RuntimeException {
 		return new QueryException(Functor.create("existence_error", objectType, culprit));
 	}
 	
+	public static QueryException evaluation_error(Term error) {
+		return new QueryException(Functor.create("evaluation_error", error));
+	}
+	
+	public static QueryException resource_error(Term resource) {
+		return new QueryException(Functor.create("resource_error", resource));
+	}
+	
 	public static QueryException syntax_error(Term content) {
 		return new QueryException(Functor.create("syntax_error", content));
 	}
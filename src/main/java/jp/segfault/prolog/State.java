@@ -15,15 +15,18 @@ import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
 import java.lang.reflect.Field;
+import java.util.AbstractSet;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 import jp.segfault.prolog.code.Code;
 import jp.segfault.prolog.event.DatabaseEvent;
@@ -54,29 +57,33 @@ import jp.segfault.prolog.term.Variable;
  * // クエリの実行
  * state.parse("?- append([a, b, c], [1, 2, 3], List).");
  * </pre>
+ * <p>データベース、Prolog Flag、コードのキャッシュは複数のスレッドから並行して使えるので、
+ * 一つのStateに対して、スレッドごとに{@link Query}を作って同時に実行できます(Query自体は一つのスレッドで使ってください)。
+ * 述語の呼び出しはロックせずに、assert や retract は述語のテーブルごとにロックして行います({@link Table})。
+ * 演算子の宣言(op/3)は、クエリを並行して実行する前に済ませておいてください。</p>
  * 
  * @author shun
  *
  */
 public class State {
 
-	// (述語 -> テーブル) のマッピングで、データベースの実体
-	private LinkedHashMap<Predicate,Table> tables = new LinkedHashMap<Predicate,Table>();
+	// (述語 -> テーブル) のマッピングで、データベースの実体。テーブルは削除されない
+	private final ConcurrentHashMap<Predicate,Table> tables = new ConcurrentHashMap<Predicate,Table>();
 	
-	// set_prolog_flag/2 で設定できるプロパティ
-	private LinkedHashMap<String,String> flags = new LinkedHashMap<String,String>();
+	// テーブルを作成した順の述語
+	private final ConcurrentLinkedQueue<Predicate> predicates = new ConcurrentLinkedQueue<Predicate>();
+	
+	// set_prolog_flag/2 で設定できるプロパティ。設定する度に複製したものに置き換える
+	private volatile LinkedHashMap<String,String> flags = new LinkedHashMap<String,String>();
 
 	// op/3 で設定できる演算子の宣言
 	private OperatorTable operatorTable = new OperatorTable();
 	
 	// データベースの変化の通知を受けるリスナー
-	private HashSet<DatabaseListener> databaseListenerSet = new HashSet<DatabaseListener>();
-	
-	// コンパイル済みのコードのキャッシュ
-	private WeakHashMap<Term,SoftReference<Code>> codePool = new WeakHashMap<Term,SoftReference<Code>>();
+	private final CopyOnWriteArraySet<DatabaseListener> databaseListenerSet = new CopyOnWriteArraySet<DatabaseListener>();
 	
-	// キャッシュのリファレンスの開放の通知を受けるキュー
-	private ReferenceQueue<Code> codePoolQueue = new ReferenceQueue<Code>();
+	// コンパイル済みのコードのキャッシュ。項のハッシュ値で分けて、それぞれをロックする
+	private final CodePool[] codePools = new CodePool[16];
 
 	public final InputStream  in;
 	public final PrintStream out;
@@ -85,6 +92,9 @@ public class State {
 		
 		this.in  =  in;
 		this.out = out;
+		for (int i = 0; i < codePools.length; ++i) {
+			codePools[i] = new CodePool();
+		}
 		
 		// 組み込みの述語を組み込む
 		loadForeign(Foreign.class);
@@ -122,8 +132,11 @@ public class State {
 	/**
 	 * Prolog Flag を設定します。
 	 */
-	public String setFlag(String key, String value) {
-		return flags.put(key, value);
+	public synchronized String setFlag(String key, String value) {
+		LinkedHashMap<String,String> flags = new LinkedHashMap<String,String>(this.flags);
+		String old = flags.put(key, value);
+		this.flags = flags;
+		return old;
 	}
 
 	/**
@@ -132,6 +145,13 @@ public class State {
 	public String getFlag(String key) {
 		return flags.get(key);
 	}
+
+	/**
+	 * 読み込んだ項や assert した節の基底項を共有する(Prolog Flag の hash_consing が yes)ならtrueを返します。
+	 */
+	public boolean isSharing() {
+		return "yes".equals(flags.get("hash_consing"));
+	}
 	
 	/**
 	 * 指定した述語に割り当てられた{@link Table}取得します。存在しない場合はnullを返します。
@@ -146,7 +166,15 @@ public class State {
 	public Table getTable(Predicate predicate, boolean create) {
 		Table table = tables.get(predicate);
 		if (create && table == null) {
-			tables.put(predicate, ( table = new Table(predicate) ));
+			synchronized (tables) {
+				table = tables.get(predicate);
+				if (table != null) {
+					return table;
+				}
+				predicate = Predicate.of(predicate.id, predicate.arity); // intern されたものをキーにする
+				tables.put(predicate, ( table = new Table(predicate) ));
+				predicates.add(predicate);
+			}
 			if (!databaseListenerSet.isEmpty()) {
 				DatabaseEvent event = new DatabaseEvent(this);
 				for (DatabaseListener l: databaseListenerSet) {
@@ -161,7 +189,22 @@ public class State {
 	 * 全ての述語を取得します。
 	 */
 	public Set<Predicate> predicates() {
-		return Collections.unmodifiableSet(tables.keySet());
+		return new AbstractSet<Predicate>() {
+			@Override
+			public Iterator<Predicate> iterator() {
+				return Collections.unmodifiableCollection(predicates).iterator();
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				return tables.containsKey(o);
+			}
+
+			@Override
+			public int size() {
+				return tables.size();
+			}
+		};
 	}
 
 	/**
@@ -201,7 +244,7 @@ public class State {
 	}
 
 	/**
-	 * 指定した述語に属するi番目の{@link Procedure}を削除します。
+	 * 指定した述語に属する{@link Procedure}を全て削除します。
 	 */
 	public void delete(Predicate predicate) {
 		Table table = getTable(predicate);
@@ -209,27 +252,61 @@ public class State {
 			table.clear();
 		}
 	}
+
+	/**
+	 * 指定した述語から{@link Procedure}を削除します。
+	 */
+	public boolean delete(Predicate predicate, Procedure procedure) {
+		Table table = getTable(predicate);
+		return table != null && table.delete(procedure);
+	}
 	
 	public Code getPoolingCode(Term term) {
-		for (;;) {
-			Reference<? extends Code> ref = codePoolQueue.poll();
-			if (ref == null) {
-				break;
-			}
-			Iterator<Map.Entry<Term,SoftReference<Code>>> i = codePool.entrySet().iterator();
-			while (i.hasNext()) {
-				if (ref == i.next().getValue()) {
-					i.remove();
+		return codePool(term).get(term);
+	}
+	
+	public void putPoolingCode(Term term, Code code) {
+		codePool(term).put(term, code);
+	}
+
+	private CodePool codePool(Term term) {
+		int hash = term.hashCode();
+		return codePools[(hash ^ (hash >>> 16)) & (codePools.length - 1)];
+	}
+
+	/**
+	 * コンパイル済みのコードのキャッシュの一部です。
+	 * <p>項がどこからも参照されなくなるか、メモリが不足してコードが開放されると取り除かれます。</p>
+	 * @author shun
+	 */
+	private static final class CodePool {
+
+		private final WeakHashMap<Term,SoftReference<Code>> codes = new WeakHashMap<Term,SoftReference<Code>>();
+
+		// リファレンスの開放の通知を受けるキュー
+		private final ReferenceQueue<Code> queue = new ReferenceQueue<Code>();
+
+		synchronized Code get(Term term) {
+			for (;;) {
+				Reference<? extends Code> ref = queue.poll();
+				if (ref == null) {
 					break;
 				}
+				Iterator<Map.Entry<Term,SoftReference<Code>>> i = codes.entrySet().iterator();
+				while (i.hasNext()) {
+					if (ref == i.next().getValue()) {
+						i.remove();
+						break;
+					}
+				}
 			}
+			Reference<Code> ref = codes.get(term);
+			return ref == null ? null: ref.get();
+		}
+
+		synchronized void put(Term term, Code code) {
+			codes.put(term, new SoftReference<Code>(code, queue));
 		}
-		Reference<Code> ref = codePool.get(term);
-		return ref == null ? null: ref.get();
-	}
-	
-	public void putPoolingCode(Term term, Code code) {
-		codePool.put(term, new SoftReference<Code>(code));
 	}
 
 	/**
@@ -301,9 +378,11 @@ public class State {
 				break;
 			}
 			if (getTable(Predicate.of("term_expansion/2")) != null) {
-				List<Term> l = new Query(this,Coding.create(this
+				Query query = new Query(this,Coding.create(this
 						, Functor.create("?-", Functor.create
-								("term_expansion", term, Variable.create())))).ask();
+								("term_expansion", term, Variable.create()))));
+				List<Term> l = query.ask();
+				query.close();
 				if (l != null) {
 					term = l.get(l.size() - 1);
 				}
@@ -313,7 +392,9 @@ public class State {
 				insert(coding.head.predicate(), coding);
 			}
 			else { // クエリまたはディレクティブの実行
-				new Query(this, coding).ask();
+				Query query = new Query(this, coding);
+				query.ask();
+				query.close(); // 最初の解だけを求める
 			}
 		}
 		if (start != null) {
@@ -375,9 +456,9 @@ public class State {
 	public TermParser<Term> newParser(Reader reader) {
 		if (reader instanceof PipedReader) {
 			return new PipedParser<Term>((PipedReader) reader
-					, new TermFactoryDef(), getOperatorTable());
+					, new TermFactoryDef(isSharing()), getOperatorTable());
 		}
-		return new Parser<Term>(reader, new TermFactoryDef(), getOperatorTable());
+		return new Parser<Term>(reader, new TermFactoryDef(isSharing()), getOperatorTable());
 	}
 
 	@SuppressWarnings("resource")
@@ -2,52 +2,282 @@ package jp.segfault.prolog;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import jp.segfault.prolog.event.TableChangeEvent;
 import jp.segfault.prolog.event.TableChangeListener;
+import jp.segfault.prolog.procedure.Coding;
 import jp.segfault.prolog.procedure.Procedure;
+import jp.segfault.prolog.term.Functor;
+import jp.segfault.prolog.term.Numeric;
+import jp.segfault.prolog.term.Term;
+import jp.segfault.prolog.term.Variable;
 
 /**
  * Prologの述語データベースのテーブルです。
+ * <p>一つの{@link State}を複数のスレッドの{@link Query}から並行して使えます。
+ * 変更(insert、delete、clear)はテーブルをロックして世代を一つ進め、行({@link Row})に生まれた世代と死んだ世代を記録します。
+ * 行の並びとインデックスのバケットは、ある世代のスナップショット({@link Rows})として公開し、
+ * 呼び出しはロックせずにその時点のスナップショットを読んで、その世代で生きていた行だけを試します(論理的更新ビュー)。
+ * その為、実行中の呼び出しは、後で assert された節を試さず、retract された節も最後まで試します。
+ * 呼び出し回数などの統計は、並行して数えると取りこぼすことがあります。</p>
  * @author shun
  */
 public class Table {
 	
 	private final Predicate predicate;
 	
-	@SuppressWarnings("unused")
-	private int revision = 0;
+	// 変更の度に進める世代。変更はロックして行うので、読むのもロックしている間だけ
+	private long generation = 0;
 	
-	@SuppressWarnings("serial")
-	private ArrayList<Procedure> rows = new ArrayList<Procedure>() {};
+	private volatile Rows rows = Rows.EMPTY;
 	
-	private HashSet<TableChangeListener> tableChangeListenerSet = new HashSet<TableChangeListener>();
+	/**
+	 * 第一引数以外のインデックスを作成し始める行数です。
+	 */
+	public static final int INDEX_THRESHOLD = 8;
+	
+	// 引数の位置ごとのインデックス。第一引数以外は、行数がINDEX_THRESHOLDを超えてから、
+	// その位置に値が束縛された呼び出しがあった時点で作成する。作成、作り直しでは配列ごと置き換える
+	private volatile Index[] indexes;
+	
+	// 引数の位置ごとの、呼び出し時に値が束縛されていた回数と、直前の呼び出しで選択されたインデックスの位置(-1は全件走査)。
+	// どちらも table_index_info/2 の為のもので、全てのスレッドの呼び出しが書き込むと競合するので、
+	// Prolog Flag の index_statistics が yes の時だけ記録する
+	private final AtomicIntegerArray boundCounts;
+	private volatile int selected = -1;
+	
+	/**
+	 * 変更されないままこの回数だけ呼び出されたテーブルを{@link Program}にコンパイルします。
+	 */
+	public static final int COMPILE_THRESHOLD = 4;
+	
+	// コンパイル済みの命令列と、最後に変更されてからの呼び出し回数
+	private volatile Program program;
+	private int calls = 0;
+	
+	// テーブル化(:- table)した述語の解の表。テーブル化していなければnull
+	private volatile Tabling tabling;
+	
+	private final CopyOnWriteArraySet<TableChangeListener> tableChangeListenerSet = new CopyOnWriteArraySet<TableChangeListener>();
 	
 	public Table(Predicate predicate) {
 		this.predicate = predicate;
+		Index[] indexes = new Index[Math.max(predicate.arity, 0)];
+		boundCounts = new AtomicIntegerArray(indexes.length);
+		if(indexes.length > 0) {
+			indexes[0] = new Index(0);
+		}
+		this.indexes = indexes;
 	}
 
 	public Predicate predicate() {
 		return predicate;
 	}
 
+	/**
+	 * 現在の行の並びを返します。戻り値は後の変更の影響を受けず、破壊的操作を加えることも出来ません。
+	 */
 	public List<Procedure> rows() {
-		return Collections.unmodifiableList(rows);
+		return Collections.unmodifiableList(rows.toList());
+	}
+
+	/**
+	 * 行が一つも無ければtrueを返します。
+	 */
+	public boolean isEmpty() {
+		return rows.count() == 0;
+	}
+
+	/**
+	 * 引数と単一化し得る行を、テーブル中の順序のまま返します。
+	 * <p>値が束縛されている引数の位置のうち、最も候補を絞り込めるインデックスを使用します。
+	 * 戻り値はバケットのスナップショットで、その世代で生きていた行だけを{@link Rows#next(int)}で辿ります。</p>
+	 * @param args       呼び出し側の引数
+	 * @param binding    引数を実体化するコールフレーム
+	 * @param statistics 束縛されていた引数と選択したインデックスを記録するならtrue
+	 */
+	Rows select(Term[] args, Binding binding, boolean statistics) {
+		Rows    rows    = this.rows;
+		Index[] indexes = this.indexes;
+		Rows    result  = rows;
+		int     chosen  = -1;
+		for(int i = 0; i < indexes.length; ++i) {
+			Object key = key(args[i].bind(binding));
+			if(key == null) {
+				continue;
+			}
+			if(statistics) {
+				boundCounts.incrementAndGet(i);
+			}
+			Index index = indexes[i];
+			if(index == null) {
+				if(rows.count() <= INDEX_THRESHOLD) {
+					continue;
+				}
+				index = index(i);
+			}
+			Rows bucket = index.select(key);
+			if(bucket.count() < result.count()) {
+				result = bucket;
+				chosen = i;
+			}
+		}
+		if(statistics) {
+			selected = chosen;
+		}
+		return result;
+	}
+
+	// 引数の位置iのインデックスを作成する。呼び出しの途中で作るので、ロックして作り終えてから配列ごと公開する
+	private synchronized Index index(int i) {
+		Index index = indexes[i];
+		if(index == null) {
+			(index = new Index(i)).rebuild();
+			Index[] indexes = this.indexes.clone();
+			indexes[i] = index;
+			this.indexes = indexes;
+		}
+		return index;
+	}
+
+	/**
+	 * コンパイル済みの命令列を返します。まだコンパイルされていないか、コンパイル出来ない場合はnullを返します。
+	 */
+	Program program() {
+		if(calls < COMPILE_THRESHOLD && ++calls == COMPILE_THRESHOLD) {
+			compile();
+		}
+		return program;
+	}
+
+	// 変更と並行してコンパイルすると、変更前の行の命令列が残ってしまうのでロックする
+	private synchronized void compile() {
+		program = Program.compile(this);
+	}
+
+	/**
+	 * 述語をテーブル化し、呼び出しの変種ごとの解の表を作るようにします。
+	 * <p>解の表は、この述語とその節から呼び出す述語のテーブルが変更されると捨てられます({@link Tabling})。</p>
+	 */
+	public synchronized void table() {
+		if(tabling == null) {
+			tabling = new Tabling(this);
+		}
+	}
+
+	/**
+	 * テーブル化した述語の解の表を返します。テーブル化していなければnullを返します。
+	 */
+	public Tabling tabling() {
+		return tabling;
+	}
+
+	/**
+	 * インデックスが作成されている引数の位置(0から始まる)を返します。
+	 */
+	public List<Integer> indexedPositions() {
+		ArrayList<Integer> positions = new ArrayList<Integer>();
+		for(int i = 0; i < indexes.length; ++i) {
+			if(indexes[i] != null) {
+				positions.add(i);
+			}
+		}
+		return positions;
+	}
+
+	/**
+	 * 直前の呼び出しで選択されたインデックスの引数の位置を返します。全件走査した場合は-1を返します。
+	 * <p>並行して呼び出された場合は、そのどれかの位置になります。
+	 * Prolog Flag の index_statistics が yes の時の呼び出しだけを記録します。</p>
+	 */
+	public int selectedPosition() {
+		return selected;
+	}
+
+	/**
+	 * 指定した位置の引数に、呼び出し時に値が束縛されていた回数を返します。
+	 * <p>Prolog Flag の index_statistics が yes の時の呼び出しだけを数えます。</p>
+	 */
+	public int boundCount(int position) {
+		return boundCounts.get(position);
 	}
 
 	public void insert(Procedure procedure, int i) {
-		if(i < 0) {
-			i += rows.size() + 1;
+		synchronized(this) {
+			int count = rows.count();
+			if(i < 0) {
+				i += count + 1;
+			}
+			Row row = new Row(procedure, ++generation);
+			rows = rows.insert(row, i, generation);
+			Index[] indexes = this.indexes;
+			if(i != 0 && i != count) {
+				// 先頭と末尾以外への挿入では、順序を保つために作り直す
+				indexes = indexes.clone();
+				for(int j = 0; j < indexes.length; ++j) {
+					if(indexes[j] != null) {
+						(indexes[j] = new Index(j)).rebuild();
+					}
+				}
+				this.indexes = indexes;
+			}
+			else {
+				for(Index index: indexes) {
+					if(index != null) {
+						index.insert(row, i == 0);
+					}
+				}
+			}
+			modified();
 		}
-		rows.add(i, procedure);
-		revision ++;
 		fireTableChangeEvent(EventType.INSERT, new TableChangeEvent(this));
 	}
 	
+	/**
+	 * 指定した行を削除します。
+	 * <p>行は死んだ世代を記録するだけで、その前の世代のスナップショットを辿っている呼び出しからは見え続けます。</p>
+	 * @return 行が存在した場合はtrue
+	 */
+	public boolean delete(Procedure procedure) {
+		synchronized(this) {
+			Row row = rows.find(procedure);
+			if(row == null) {
+				return false;
+			}
+			row.died = ++generation;
+			rows = rows.remove(row, generation);
+			for(Index index: indexes) {
+				if(index != null) {
+					index.delete(row);
+				}
+			}
+			modified();
+		}
+		fireTableChangeEvent(EventType.DELETE, new TableChangeEvent(this));
+		return true;
+	}
+
 	public void clear() {
-		rows.clear();
+		synchronized(this) {
+			rows = new Rows(new Row[0], 0, 0, ++generation);
+			Index[] indexes = new Index[this.indexes.length];
+			if(indexes.length > 0) {
+				indexes[0] = new Index(0);
+			}
+			this.indexes = indexes;
+			modified();
+		}
+		fireTableChangeEvent(EventType.DELETE, new TableChangeEvent(this));
+	}
+
+	private void modified() {
+		program = null;
+		calls   = 0;
 	}
 
 	public void addTableChangeListener(TableChangeListener listener) {
@@ -67,4 +297,267 @@ public class Table {
 			}
 		}
 	}
+
+	/**
+	 * インデックスのキーを返します。
+	 * <p>アトムと関数子は名前とアリティ、数値はその{@link Numeric}自身がキーになります。
+	 * 変数などキーを持たない項の場合はnullを返します。</p>
+	 */
+	static Object key(Term term) {
+		if(term instanceof Variable) {
+			term = term.strip(); // Thunkは評価しない
+		}
+		if(term instanceof Functor) {
+			return ((Functor) term).predicate();
+		}
+		if(term instanceof Numeric) {
+			return term;
+		}
+		return null;
+	}
+
+	/**
+	 * 節の頭部の指定した位置の引数でキーを返します。ユーザ定義でない行はnullを返します。
+	 */
+	static Object key(Procedure procedure, int position) {
+		if(procedure instanceof Coding) {
+			Coding coding = (Coding) procedure;
+			if(coding.head != null && position < coding.head.arity()) {
+				return key(coding.head.get(position));
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 指定した位置の引数のキーから行を引くハッシュインデックスです。
+	 * <p>各バケットは、そのキーを持つ行と、キーを持たない(どの値とも単一化し得る)行を、
+	 * テーブル中の順序のまま保持します。変更はテーブルをロックして行い、バケットごと新しいスナップショットに置き換えます。</p>
+	 * @author shun
+	 */
+	private class Index {
+
+		final int position;
+
+		final ConcurrentHashMap<Object,Rows> buckets = new ConcurrentHashMap<>();
+
+		// キーを持たない行
+		volatile Rows variables = Rows.EMPTY;
+
+		Index(int position) {
+			this.position = position;
+		}
+
+		Rows select(Object key) {
+			Rows bucket = buckets.get(key);
+			return bucket != null ? bucket: variables;
+		}
+
+		// 先頭(first)か末尾に行を追加する
+		void insert(Row row, boolean first) {
+			Object key = key(row.procedure, position);
+			if(key == null) {
+				variables = add(variables, row, first);
+				for(Map.Entry<Object,Rows> e: buckets.entrySet()) {
+					e.setValue(add(e.getValue(), row, first));
+				}
+				return;
+			}
+			Rows bucket = buckets.get(key);
+			buckets.put(key, add(bucket != null ? bucket: variables, row, first));
+		}
+
+		// 死んだ行を含むバケットを、今の世代のスナップショットに置き換える
+		void delete(Row row) {
+			Object key = key(row.procedure, position);
+			if(key == null) {
+				variables = variables.remove(row, generation);
+				for(Map.Entry<Object,Rows> e: buckets.entrySet()) {
+					e.setValue(e.getValue().remove(row, generation));
+				}
+				return;
+			}
+			Rows bucket = buckets.get(key);
+			if(bucket != null) {
+				buckets.put(key, bucket.remove(row, generation));
+			}
+		}
+
+		// 作成したばかりのインデックスに、生きている行を全て登録する
+		void rebuild() {
+			Rows rows = Table.this.rows;
+			for(int i = rows.next(0); i < rows.size(); i = rows.next(i + 1)) {
+				insert(rows.row(i), false);
+			}
+		}
+
+		private Rows add(Rows bucket, Row row, boolean first) {
+			return bucket.insert(row, first ? 0: bucket.count(), generation);
+		}
+	}
+
+	/**
+	 * テーブルの行です。生まれた世代と死んだ世代を持ちます。
+	 * @author shun
+	 */
+	static final class Row {
+
+		final Procedure procedure;
+
+		// assert された世代
+		final long born;
+
+		// retract された世代。生きていれば Long.MAX_VALUE
+		volatile long died = Long.MAX_VALUE;
+
+		Row(Procedure procedure, long born) {
+			this.procedure = procedure;
+			this.born      = born;
+		}
+
+		/**
+		 * 指定した世代で生きていればtrueを返します。
+		 */
+		boolean isVisible(long generation) {
+			return born <= generation && generation < died;
+		}
+	}
+
+	/**
+	 * ある世代の、行の並びのスナップショットです。
+	 * <p>配列上の行のうち、{@link #generation}で生きていたものだけが見えます。行を削除しても配列は複製せず、
+	 * 世代を進めたスナップショットを作るだけです。死んだ行が半分を超えたら、生きている行だけを複製して詰めます。
+	 * 末尾への追加は、配列の次の位置がまだ使われていなければそこに書き込んで配列を共有します。
+	 * 配列を共有する古いスナップショットからは、その位置も、後の世代で死んだ行も見えないので、読み取りにロックは要りません。</p>
+	 * @author shun
+	 */
+	static final class Rows {
+
+		static final Rows EMPTY = new Rows(new Row[0], 0, 0, 0);
+
+		private final Row[] array;
+		private final int   size;
+
+		// size のうち、generation で死んでいる行の数
+		private final int   dead;
+
+		/**
+		 * このスナップショットの世代です。
+		 */
+		final long generation;
+
+		Rows(Row[] array, int size, int dead, long generation) {
+			this.array      = array;
+			this.size       = size;
+			this.dead       = dead;
+			this.generation = generation;
+		}
+
+		/**
+		 * 死んだ行も含めた、配列上の行の数を返します。
+		 */
+		int size() {
+			return size;
+		}
+
+		/**
+		 * 生きている行の数を返します。
+		 */
+		int count() {
+			return size - dead;
+		}
+
+		Row row(int i) {
+			if(i >= size) {
+				throw new IndexOutOfBoundsException("Index: "+ i +", Size: "+ size);
+			}
+			return array[i];
+		}
+
+		/**
+		 * 配列上のi番目の行を返します。
+		 */
+		Procedure get(int i) {
+			return row(i).procedure;
+		}
+
+		/**
+		 * 配列上のi番目以降で、最初に生きている行の位置を返します。無ければ{@link #size()}を返します。
+		 */
+		int next(int i) {
+			while(i < size && !array[i].isVisible(generation)) {
+				++i;
+			}
+			return i;
+		}
+
+		/**
+		 * 生きている行の並びを返します。
+		 */
+		List<Procedure> toList() {
+			ArrayList<Procedure> list = new ArrayList<Procedure>(count());
+			for(int i = next(0); i < size; i = next(i + 1)) {
+				list.add(array[i].procedure);
+			}
+			return list;
+		}
+
+		/**
+		 * 指定した手続きの、生きている行を返します。無ければnullを返します。
+		 */
+		Row find(Procedure procedure) {
+			for(int i = next(0); i < size; i = next(i + 1)) {
+				if(array[i].procedure == procedure) {
+					return array[i];
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * 生きている行のi番目に行を挿入した、世代generationのスナップショットを返します。
+		 */
+		Rows insert(Row row, int i, long generation) {
+			if(i == count() && size < array.length && array[size] == null) {
+				array[size] = row;
+				return new Rows(array, size + 1, dead, generation);
+			}
+			// 複製する時に死んだ行を詰める
+			Row[] copy = new Row[Math.max(count() * 2, 4)];
+			int n = 0;
+			for(int j = next(0); j < size; j = next(j + 1)) {
+				if(n == i) {
+					copy[n++] = row;
+				}
+				copy[n++] = array[j];
+			}
+			if(n == i) {
+				copy[n++] = row;
+			}
+			return new Rows(copy, n, 0, generation);
+		}
+
+		/**
+		 * 行rowが死んだ、世代generationのスナップショットを返します。rowを含まなければthisを返します。
+		 */
+		Rows remove(Row row, long generation) {
+			for(int i = 0; i < size; ++i) {
+				if(array[i] == row) {
+					Rows rows = new Rows(array, size, dead + 1, generation);
+					return rows.dead * 2 > size ? rows.compact(): rows;
+				}
+			}
+			return this;
+		}
+
+		// 生きている行だけを複製する
+		private Rows compact() {
+			Row[] copy = new Row[Math.max(count() * 2, 4)];
+			int n = 0;
+			for(int i = next(0); i < size; i = next(i + 1)) {
+				copy[n++] = array[i];
+			}
+			return new Rows(copy, n, 0, generation);
+		}
+	}
 }
@@ -0,0 +1,417 @@
+package jp.segfault.prolog;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+
+import jp.segfault.prolog.code.Call;
+import jp.segfault.prolog.code.Code;
+import jp.segfault.prolog.code.Select;
+import jp.segfault.prolog.event.TableChangeEvent;
+import jp.segfault.prolog.event.TableChangeListener;
+import jp.segfault.prolog.procedure.Coding;
+import jp.segfault.prolog.procedure.Procedure;
+import jp.segfault.prolog.term.Complex;
+import jp.segfault.prolog.term.Functor;
+import jp.segfault.prolog.term.Term;
+import jp.segfault.prolog.term.Var;
+import jp.segfault.prolog.term.Variable;
+
+import static jp.segfault.prolog.code.Result.*;
+
+/**
+ * テーブル化(:- table p/2.)した述語の呼び出しを、呼び出しの変種(variant)ごとに解の表を作って処理します。
+ * <p>呼び出しの変種と解は、どちらも項を辿った順の記号をキーにしたトライ木で管理します。
+ * 初めての変種の呼び出し(生成者)は節を全て実行して解を表に集め、表を完成させてから解を返します。
+ * 評価中の変種をもう一度呼び出した場合(消費者)は節を実行せず、その時点で表にある解を返します。
+ * その為、左再帰などで停止しない述語も停止し、同じ呼び出しを何度も計算し直すこともありません。</p>
+ * <p>評価は線形テーブル化(linear tabling)で行います。消費者を中断して後で再開する代わりに、
+ * 評価中の変種に依存した生成者のうち最も古いもの(リーダー)が、新しい解が見つからなくなるまで節の実行を繰り返し、
+ * 依存していた表をまとめて完成させます。コードは{@link jp.segfault.prolog.procedure.Foreign}の findall/3 と同じく、
+ * 解を記録して失敗する継続と、全ての選択肢を試した後に呼ばれるChoicePointで組み立てます。</p>
+ * <p>解の表は、この述語の節と、節から呼び出す述語を辿った全てのテーブルに依存します。
+ * それらのテーブルに{@link TableChangeListener}として登録しておき、どれかが変更(assert、retract など)されたら
+ * 表を全て捨てます。依存しないテーブルが変更されても表は残ります。
+ * 依存するテーブルは{@link Coding#dependencies()}から求めるので、call/1 や findall/3 などで
+ * 間接的に呼び出す述語の変更は検出できません。その場合は abolish_all_tables/0 で捨ててください。</p>
+ * <p>完成した表は、同じ{@link State}の全てのクエリで共有します。完成していない表は、それを作ったクエリだけが変更します。
+ * 他のクエリが評価中の変種を呼び出したクエリは、新しい表を作って自分で評価します。</p>
+ * @author shun
+ */
+public class Tabling extends Procedure implements TableChangeListener {
+
+	private final Table table;
+
+	// 呼び出しの変種の表。値は Entry
+	private volatile Trie calls = new Trie();
+
+	// 依存するテーブル。依存関係が変わり得る変更があれば、次の呼び出しで求め直す
+	private HashSet<Table> dependencies = new HashSet<Table>();
+	private volatile boolean stale = true;
+
+	Tabling(Table table) {
+		this.table = table;
+	}
+
+	/**
+	 * 全ての解の表を捨てます。
+	 */
+	public void clear() {
+		calls = new Trie();
+	}
+
+	@Override
+	public void rowInserted(TableChangeEvent event) {
+		clear();
+		stale = true; // 節が増えて、依存するテーブルも増えたかもしれない
+	}
+
+	@Override
+	public void rowDeleted(TableChangeEvent event) {
+		clear();
+		stale = true;
+	}
+
+	@Override
+	public int locals() {
+		return table.predicate().arity; // 無名変数の引数の代わりの変数
+	}
+
+	// 節から呼び出す述語を辿って、依存するテーブルを求め直して登録する。
+	// 変更の通知を受けている最中にはリスナーを登録、削除できないので、呼び出しの時に行う
+	private synchronized void depend(State state) {
+		HashSet<Table> tables = new HashSet<Table>();
+		ArrayDeque<Table> work = new ArrayDeque<Table>();
+		tables.add(table);
+		work.push(table);
+		while (!work.isEmpty()) {
+			for (Procedure row: work.pop().rows()) {
+				if (!(row instanceof Coding)) {
+					continue;
+				}
+				for (Predicate predicate: ((Coding) row).dependencies()) {
+					Table dependency = state.getTable(predicate);
+					if (dependency != null && tables.add(dependency)) {
+						work.push(dependency);
+					}
+				}
+			}
+		}
+		for (Table dependency: dependencies) {
+			if (!tables.contains(dependency)) {
+				dependency.removeTableChangeListener(this);
+			}
+		}
+		for (Table dependency: tables) {
+			dependency.addTableChangeListener(this);
+		}
+		dependencies = tables;
+		stale = false;
+	}
+
+	@Override
+	public Code call(Query query, Term... args) {
+		if (stale) {
+			depend(query.state);
+		}
+		for (int i = 0; i < args.length; ++i) {
+			if (args[i] == Variable._) {
+				// 無名変数のままでは、解を記録する時に束縛された値が分からない
+				args[i] = Variable.create(i, "_").bind(query.callee);
+			}
+		}
+		Term  goal  = Functor.create(table.predicate(), args);
+		Entry entry = entry(query, goal.unbind());
+		if (entry.complete) {
+			query.setChoicePoint(new Answers(query, entry, goal));
+			return Fail;
+		}
+		ArrayList<Entry> producers = query.producers;
+		if (entry.isEvaluating(query)) {
+			// 消費者: この変種より後に評価を始めた生成者は、この変種と一緒にしか完成できない
+			for (int i = entry.position; i < producers.size(); ++i) {
+				Entry e = producers.get(i);
+				e.leader = Math.min(e.leader, entry.position);
+			}
+			query.consumers++;
+			query.setChoicePoint(new Answers(query, entry, goal));
+			return Fail;
+		}
+		// 生成者: 既にある解(完成しなかった以前の評価の分)は残したまま評価する
+		entry.query    = query;
+		entry.position = producers.size();
+		entry.leader   = entry.position;
+		producers.add(entry);
+		Producer producer = new Producer(query, entry, goal, args);
+		query.setChoicePoint(producer);
+		return producer.evaluation;
+	}
+
+	// 変種variantの表を返す。他のクエリが作って完成していない表は、新しい表に置き換える
+	private synchronized Entry entry(Query query, Term variant) {
+		Trie  node  = calls.insert(variant);
+		Entry entry = (Entry) node.value;
+		if (entry == null || !entry.complete && entry.owner != query) {
+			node.value = entry = new Entry(query);
+		}
+		return entry;
+	}
+
+	/**
+	 * 呼び出しの変種一つ分の解の表です。
+	 * <p>完成するまでは{@link #owner}だけが変更します。完成した後は変更されないので、どのクエリからも読めます。</p>
+	 */
+	static final class Entry {
+
+		final ArrayList<Term> answers = new ArrayList<Term>();
+		final Trie            trie    = new Trie();
+		volatile boolean complete;
+
+		// 表を作ったクエリ。完成したら null にする
+		Query owner;
+
+		// 評価中のクエリと、Query#producers 中の位置。評価していなければ query は null
+		Query query;
+		int   position;
+
+		// 一緒に完成させる生成者のうち、最も古いものの位置
+		int   leader;
+
+		// リーダーより先に評価を終えた、リーダーと一緒に完成させる表
+		ArrayList<Entry> followers;
+
+		Entry(Query owner) {
+			this.owner = owner;
+		}
+
+		boolean isEvaluating(Query query) {
+			return this.query == query
+					&& position < query.producers.size() && query.producers.get(position) == this;
+		}
+
+		void complete() {
+			owner    = null;
+			complete = true;
+		}
+
+		void add(Query query, Term goal) {
+			Term answer = goal.unbind();
+			Trie node = trie.insert(answer);
+			if (node.value == null) {
+				node.value = answer;
+				answers.add(answer);
+				query.answers++;
+			}
+		}
+	}
+
+	/**
+	 * 表にある解を、呼び出しの引数と順に単一化します。
+	 * <p>表が完成していなければ、最後の解を返した後もChoicePointを残しておき、
+	 * その解の後の実行で追加された解も返します。新しい解が無ければ、その時点で失敗して取り除かれます。</p>
+	 */
+	private static class Answers implements Iterator<Code> {
+
+		final Query query;
+		final Entry entry;
+		final Term  goal;
+		int index = 0;
+
+		// 完成していない表で、新しい解が無く失敗した
+		private boolean drained;
+
+		Answers(Query query, Entry entry, Term goal) {
+			this.query = query;
+			this.entry = entry;
+			this.goal  = goal;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return index < entry.answers.size() || !entry.complete && !drained;
+		}
+
+		@Override
+		public Code next() {
+			if (index >= entry.answers.size()) {
+				drained = true;
+				return Fail;
+			}
+			Unifier unifier = query.getUnifier();
+			if (unifier.exec(goal, entry.answers.get(index++).rebind(query.callee))) {
+				unifier.commit(query);
+				return True;
+			}
+			return Fail;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * 生成者です。節を全て実行し終えると呼ばれ、表が完成していれば解を返し始めます。
+	 */
+	private final class Producer extends Answers {
+
+		// 節を実行し、解を記録して失敗するコード
+		final Code evaluation;
+
+		boolean evaluating = true;
+
+		// 前回の実行を始めた時点の Query#answers と Query#consumers
+		int mark;
+		int consumers;
+
+		Producer(Query query, final Entry entry, final Term goal, Term[] args) {
+			super(query, entry, goal);
+			evaluation = new Evaluation(new Call(Fail, new Term[0], new Procedure() {
+				@Override
+				public Code call(Query query, int ancestry, Binding caller, Code next, Term[] _) {
+					entry.add(query, goal);
+					return next;
+				}
+			}), args, table);
+			mark      = query.answers;
+			consumers = query.consumers;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return evaluating || super.hasNext();
+		}
+
+		@Override
+		public Code next() {
+			if (evaluating) {
+				if (!finish()) {
+					return evaluation;
+				}
+				evaluating = false;
+			}
+			return super.next();
+		}
+
+		// 節を全て実行し終えた。もう一度実行する必要があればfalseを返す
+		private boolean finish() {
+			ArrayList<Entry> producers = query.producers;
+			int position = entry.position;
+			// カットで取り除かれた、後から評価を始めた生成者(完成しないまま残る)
+			while (producers.size() > position + 1) {
+				producers.remove(producers.size() - 1).query = null;
+			}
+			if (entry.leader < position) {
+				// リーダーが完成させる。それまでは、ここまでに見つかった解を返す
+				Entry leader = producers.get(entry.leader);
+				if (leader.followers == null) {
+					leader.followers = new ArrayList<Entry>();
+				}
+				leader.followers.add(entry);
+				if (entry.followers != null) {
+					leader.followers.addAll(entry.followers);
+					entry.followers = null;
+				}
+				producers.remove(position).query = null;
+				return true;
+			}
+			if (query.answers != mark && query.consumers != consumers) {
+				// 評価中の表から解を受け取った呼び出しがあり、その後に新しい解が見つかったかもしれない
+				mark      = query.answers;
+				consumers = query.consumers;
+				return false;
+			}
+			entry.complete();
+			if (entry.followers != null) {
+				for (Entry e: entry.followers) {
+					e.complete();
+				}
+				entry.followers = null;
+			}
+			producers.remove(position).query = null;
+			return true;
+		}
+	}
+
+	/**
+	 * 生成者が、テーブル化した述語の節を実行する呼び出しです。
+	 * <p>{@link Query}はこの呼び出しを解の表を経由せずに実行します。</p>
+	 */
+	static final class Evaluation extends Select {
+
+		Evaluation(Code next, Term[] args, Table table) {
+			super(next, args, table);
+		}
+	}
+
+	/**
+	 * 項を辿った順の記号(関数子、アトム、数値、出現順の変数番号)をキーにしたトライ木です。
+	 * <p>変数名が異なるだけの項(変種)は、同じ節点に辿り着きます。</p>
+	 */
+	static final class Trie {
+
+		// 子の節点。葉では null
+		private HashMap<Object,Trie> children;
+
+		/**
+		 * 葉に関連付けられた値です。
+		 */
+		Object value;
+
+		/**
+		 * コールフレームから切り離した項termの記号を辿り、対応する葉を返します。無ければ作成します。
+		 */
+		Trie insert(Term term) {
+			IdentityHashMap<Term,Integer> vars = null;
+			int anonymous = 0;
+			ArrayDeque<Term> stack = new ArrayDeque<Term>();
+			Trie node = this;
+			for (;;) {
+				Object token;
+				if (term instanceof Complex) {
+					Complex complex = (Complex) term;
+					token = complex.predicate();
+					for (int i = complex.arity() - 1; i >= 0; --i) {
+						stack.push(complex.get(i));
+					}
+				}
+				else if (term == Variable._) {
+					token = --anonymous; // 無名変数は全て異なる
+				}
+				else if (term instanceof Var) {
+					if (vars == null) {
+						vars = new IdentityHashMap<Term,Integer>();
+					}
+					Integer id = vars.get(term);
+					if (id == null) {
+						vars.put(term, (id = vars.size()));
+					}
+					token = id;
+				}
+				else {
+					token = term; // アトム、数値など
+				}
+				node = node.child(token);
+				if (stack.isEmpty()) {
+					return node;
+				}
+				term = stack.pop();
+			}
+		}
+
+		private Trie child(Object token) {
+			if (children == null) {
+				children = new HashMap<Object,Trie>(4);
+			}
+			Trie child = children.get(token);
+			if (child == null) {
+				children.put(token, (child = new Trie()));
+			}
+			return child;
+		}
+	}
+}
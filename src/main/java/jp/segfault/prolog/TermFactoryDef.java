@@ -9,6 +9,17 @@ import jp.segfault.prolog.term.Variable;
 
 public class TermFactoryDef extends TermFactory<Term> {
 
+	// 基底項を共有するならtrue(Prolog Flag の hash_consing)
+	private final boolean sharing;
+
+	public TermFactoryDef() {
+		this(false);
+	}
+
+	public TermFactoryDef(boolean sharing) {
+		this.sharing = sharing;
+	}
+
 	@Override
 	public Term newAtom(String value) {
 		return Term.valueOf(value);
@@ -19,6 +30,11 @@ public class TermFactoryDef extends TermFactory<Term> {
 		return Term.valueOf(value);
 	}
 
+	@Override
+	public Term newAtom(Number value) {
+		return Term.valueOf(value);
+	}
+
 	@Override
 	public Term newAtom(double value) {
 		return Term.valueOf(value);
@@ -26,7 +42,8 @@ public class TermFactoryDef extends TermFactory<Term> {
 
 	@Override
 	public Term newFunctor(String value, List<Term> args) {
-		return Functor.create(value, args);
+		Term term = Functor.create(value, args);
+		return sharing ? Functor.intern(term): term;
 	}
 
 	@Override
@@ -0,0 +1,65 @@
+package jp.segfault.prolog;
+
+import java.util.Arrays;
+
+/**
+ * バックトラッキングで元に戻す束縛の記録(トレイル)です。
+ * <p>束縛したスロットを、コールフレームとスロット番号の組で配列に積んでいきます。
+ * {@link ChoicePoint}はpushした時点の高さ({@link ChoicePoint#mark})を覚えておき、
+ * バックトラッキングではその高さまで切り詰めます。</p>
+ * @author shun
+ */
+public class Trail {
+
+	private Binding[] frames = new Binding[64];
+	private int[]     slots  = new int[64];
+	private int       size   = 0;
+
+	/**
+	 * 現在の高さを返します。
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * 束縛したスロットを記録します。
+	 */
+	public void push(Binding frame, int slot) {
+		if(size == frames.length) {
+			frames = Arrays.copyOf(frames, size * 2);
+			slots  = Arrays.copyOf(slots , size * 2);
+		}
+		frames[size] = frame;
+		slots [size] = slot;
+		size++;
+	}
+
+	/**
+	 * 指定した高さより上に記録されたスロットを全て未束縛に戻します。
+	 */
+	public void undo(int mark) {
+		while(size > mark) {
+			--size;
+			frames[size].setSlot(slots[size], null);
+			frames[size] = null;
+		}
+	}
+
+	/**
+	 * 指定した高さより上の記録のうち、順序番号がancestryより新しいコールフレームのものを捨てます。
+	 * <p>カットでChoicePointを取り除いた時に、残ったChoicePointが元に戻す必要の無い記録を整理します。</p>
+	 */
+	public void tidy(int mark, int ancestry) {
+		int j = mark;
+		for(int i = mark; i < size; ++i) {
+			if(frames[i].ordinal <= ancestry) {
+				frames[j] = frames[i];
+				slots [j] = slots [i];
+				j++;
+			}
+		}
+		Arrays.fill(frames, j, size, null);
+		size = j;
+	}
+}
@@ -1,5 +1,8 @@
 package jp.segfault.prolog;
 
+import java.util.Arrays;
+
+import jp.segfault.prolog.term.Comp;
 import jp.segfault.prolog.term.CompRef;
 import jp.segfault.prolog.term.Complex;
 import jp.segfault.prolog.term.Term;
@@ -18,6 +21,15 @@ public class Unifier {
 	private VarRef[] vars = new VarRef[]{};
 	private int      size = 0;
 	private final boolean TRACE;
+
+	// 単一化を待っている引数の組(x, bx, y, by)と、トレース用の深さ
+	private Object[] stack;
+	private int[]    levels;
+	private int      height = 0;
+
+	// step() が引数の単一化を求めた複合項と、そのコールフレーム
+	private Complex pending, pendingY;
+	private Binding pendingBx, pendingBy;
 	
 	public Unifier(Query query) {
 		this.TRACE = query != null
@@ -60,6 +72,33 @@ public class Unifier {
 		return succeeded;
 	}
 
+	/**
+	 * アトム、数値または基底項の複合項 constant と、実体化済みの項 arg を単一化します。
+	 * <p>arg が束縛済みなら値の比較だけで済ませます。基底項の複合項とは、arg も基底項の時だけ比較で済みます。
+	 * 失敗した場合は、それまでの結果も取消します。</p>
+	 * @return 成功すればtrue
+	 */
+	public boolean unifyConstant(Term constant, Term arg) {
+		Term term = resolve(arg);
+		if(term instanceof Variable || term instanceof Thunk || constant instanceof Comp
+				&& term instanceof Complex && !(term instanceof Comp && ((Comp) term).isGround())) {
+			return exec(arg, constant);
+		}
+		if(!constant.equals(term)) {
+			rollback();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 変数を、実行中の(まだ環境に反映されていない)結果も含めて辿り、その値を返します。
+	 * <p>未束縛の場合は{@link VarRef}を返します。</p>
+	 */
+	public Term resolve(Term term) {
+		return term == Variable._ ? term: ref(term, null);
+	}
+
 	/**
 	 * 実行結果を環境に反映します。
 	 */
@@ -68,10 +107,6 @@ public class Unifier {
 			System.err.println("Unifier.commit: 開始！");
 		}
 		
-		ChoicePoint choicePoint = null;
-		if(query != null) {
-			choicePoint = query.getChoicePoint();
-		}
 		int count = 0;
 		while(count < size) {
 			VarRef var = vars[count++];
@@ -80,7 +115,7 @@ public class Unifier {
 			}
 			var.setSlot(var.getTemp());
 			var.setTemp(null);
-			if(choicePoint != null) choicePoint.add(var);
+			if(query != null) query.trail(var.binding, var.var.id);
 		}
 
 		if(TRACE) System.err.println("Unifier.commit: "+ count +" 個の変数が変化しました。");
@@ -97,7 +132,53 @@ public class Unifier {
 		size = 0;
 	}
 
+	/**
+	 * 明示的なスタックを使って単一化します。
+	 * <p>複合項は2番目以降の引数を逆順にスタックに積み、最初の引数を続けて単一化するので、
+	 * 左から順に単一化しつつ、リストの末尾はスタックに一つしか積まれません。</p>
+	 */
 	private boolean unify(Term x, Binding bx, Term y, Binding by, int level) {
+		final int base = height;
+		try {
+			for(;;) {
+				if(!step(x, bx, y, by, level)) {
+					return false;
+				}
+				if(pending != null) {
+					// 複合項: 最初の引数を続けて単一化する
+					Complex fx = pending, fy = pendingY;
+					pending = pendingY = null;
+					bx = pendingBx;
+					by = pendingBy;
+					for(int i = fx.arity() - 1; i > 0; --i) {
+						push(fx.get(i), bx, fy.get(i), by, level + 1);
+					}
+					x = fx.get(0);
+					y = fy.get(0);
+					level++;
+					continue;
+				}
+				if(height == base) {
+					return true;
+				}
+				int at = --height * 4;
+				x  = (Term)    stack[at    ];
+				bx = (Binding) stack[at + 1];
+				y  = (Term)    stack[at + 2];
+				by = (Binding) stack[at + 3];
+				level = levels[height];
+			}
+		} finally {
+			if(height > base) {
+				Arrays.fill(stack, base * 4, height * 4, null);
+				height = base;
+			}
+			pending = pendingY = null;
+		}
+	}
+
+	// 引数を辿らずに済む単一化を行う。引数の単一化が必要なら pending に設定する
+	private boolean step(Term x, Binding bx, Term y, Binding by, int level) {
 		if(x == Variable._ || y == Variable._) {
 			return true;
 		}
@@ -108,7 +189,7 @@ public class Unifier {
 			trace("        $y=" + $y, level);
 		}
 		if(($x == $y || $x.equals($y)) && !($x instanceof Template)) {
-			trace("==> equal:" + ($x == $y), level);
+			if(TRACE) trace("==> equal:" + ($x == $y), level);
 			return true;
 		}
 		boolean X = $x instanceof VarRef;
@@ -118,7 +199,7 @@ public class Unifier {
 			if(X)
 			     substitute((VarRef) $x, $y.bind(by));
 			else substitute((VarRef) $y, $x.bind(bx));
-			trace("==> substitute", level);
+			if(TRACE) trace("==> substitute", level);
 			return true;
 		}
 		// どちらも変数
@@ -129,7 +210,7 @@ public class Unifier {
 			if(delta != 0 ? delta < 0: vx.var.id < vy.var.id)
 			     substitute(vy, vx);
 			else substitute(vx, vy);
-			trace("==> union", level);
+			if(TRACE) trace("==> union", level);
 			return true;
 		}
 		while($x instanceof Thunk) $x = $x.strip();
@@ -138,23 +219,51 @@ public class Unifier {
 		   $y instanceof Complex) {
 			Complex fx = (Complex) $x;
 			Complex fy = (Complex) $y;
+			// 基底項同士であれば、同値でないことは上の equals で分かっている
+			if(fx instanceof Comp && ((Comp) fx).isGround() &&
+			   fy instanceof Comp && ((Comp) fy).isGround()) {
+				if(TRACE) trace("==> ground", level);
+				return false;
+			}
 			if(fx.arity() == fy.arity()) {
 				if(fx instanceof CompRef) { CompRef ref = (CompRef) fx; bx = ref.binding; fx = ref.comp; }
 				if(fy instanceof CompRef) { CompRef ref = (CompRef) fy; by = ref.binding; fy = ref.comp; }
-				if(fx.name().equals(fy.name())) {
-					trace("==> + recursive: fx=" + fx + ", fy=" + fy, level);
-					trace("               : $x=" + $x + ", $y=" + $y, level);
-					for(int i = 0; i < fx.arity(); ++i) {
-						trace("    + x("+i+") = " + fx.get(i), level);
-						trace("    + y("+i+") = " + fy.get(i), level);
-						if(!unify(fx.get(i), bx, fy.get(i), by, level+1)) return false;
+				if(fx.predicate() == fy.predicate()) {
+					if(TRACE) {
+						trace("==> + recursive: fx=" + fx + ", fy=" + fy, level);
+						trace("               : $x=" + $x + ", $y=" + $y, level);
+						for(int i = 0; i < fx.arity(); ++i) {
+							trace("    + x("+i+") = " + fx.get(i), level);
+							trace("    + y("+i+") = " + fy.get(i), level);
+						}
 					}
+					pending   = fx;
+					pendingY  = fy;
+					pendingBx = bx;
+					pendingBy = by;
 					return true;
 				}
 			}
 		}
 		return false;
 	}
+
+	private void push(Term x, Binding bx, Term y, Binding by, int level) {
+		if(stack == null) {
+			stack  = new Object[16 * 4];
+			levels = new int[16];
+		}
+		else if(height == levels.length) {
+			stack  = Arrays.copyOf(stack , height * 2 * 4);
+			levels = Arrays.copyOf(levels, height * 2);
+		}
+		int at = height * 4;
+		stack[at    ] = x;
+		stack[at + 1] = bx;
+		stack[at + 2] = y;
+		stack[at + 3] = by;
+		levels[height++] = level;
+	}
 	
 	private void trace(String msg, int level) {
 		if(TRACE) {
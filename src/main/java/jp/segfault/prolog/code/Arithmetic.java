@@ -0,0 +1,71 @@
+package jp.segfault.prolog.code;
+
+import jp.segfault.prolog.Predicate;
+import jp.segfault.prolog.term.Term;
+
+/**
+ * is/2 と算術比較を、述語の呼び出しを経由せずに直接実行します。
+ * @author shun
+ */
+public class Arithmetic extends Goal {
+
+	/**
+	 * 算術式を扱う組み込み述語です。
+	 * @author shun
+	 */
+	public enum Operator {
+		IS              ("is"),
+		LESS_THAN       ("<"),
+		GREATER_THAN    (">"),
+		LESS_OR_EQUAL   ("=<"),
+		GREATER_OR_EQUAL(">="),
+		EQUAL           ("=:="),
+		NOT_EQUAL       ("=\\=");
+
+		public final Predicate predicate;
+
+		private Operator(String id) {
+			predicate = Predicate.of(id, 2);
+		}
+
+		/**
+		 * 比較の結果(左辺と右辺の大小)が、この演算子を満たせばtrueを返します。
+		 */
+		public boolean test(int c) {
+			switch(this) {
+			case LESS_THAN:        return c <  0;
+			case GREATER_THAN:     return c >  0;
+			case LESS_OR_EQUAL:    return c <= 0;
+			case GREATER_OR_EQUAL: return c >= 0;
+			case EQUAL:            return c == 0;
+			case NOT_EQUAL:        return c != 0;
+			default:
+				throw new UnsupportedOperationException(name());
+			}
+		}
+
+		/**
+		 * 述語に対応する演算子を返します。算術式を扱う述語でなければnullを返します。
+		 */
+		public static Operator of(Predicate predicate) {
+			for(Operator operator: values()) {
+				if(operator.predicate == predicate) {
+					return operator;
+				}
+			}
+			return null;
+		}
+	}
+
+	public final Operator operator;
+
+	public Arithmetic(Code next, Term[] args, Operator operator) {
+		super(next, args);
+		this.operator = operator;
+	}
+
+	@Override
+	public <T> T accept(Visitor<T> visitor) {
+		return visitor.visit(this);
+	}
+}
@@ -21,6 +21,7 @@ public abstract class Code implements Cloneable {
 		public T visit(Cut    code);
 		public T visit(Call   code);
 		public T visit(Noop   code);
+		public T visit(Arithmetic code);
 		
 	}
 	
@@ -103,6 +104,11 @@ public abstract class Code implements Cloneable {
 		public Code visit(Noop code) {
 			return new Noop(visit(code.next));
 		}
+
+		@Override
+		public Code visit(Arithmetic code) {
+			return new Arithmetic(visit(code.next), visit(code.args), code.operator);
+		}
 	}
 	
 	/**
@@ -164,6 +170,11 @@ public abstract class Code implements Cloneable {
 		public String visit(Noop code) {
 			return code.next.accept(this);
 		}
+
+		@Override
+		public String visit(Arithmetic code) {
+			return code.operator.predicate.id + visit((Goal) code);
+		}
 	}
 
 }
@@ -2,6 +2,7 @@ package jp.segfault.prolog.parser;
 
 import java.io.IOException;
 import java.io.Reader;
+import java.math.BigInteger;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
@@ -89,14 +90,33 @@ public class Parser<TERM> implements TermParser<TERM> {
 		}
 	}
 	
+	// 整数の表記(符号や0xを含む)を、値の大きさに応じた型のアトムにする
+	private TERM integer(String value) {
+		boolean negative = value.startsWith("-");
+		String digits = negative || value.startsWith("+") ? value.substring(1): value;
+		int radix = 10;
+		if (digits.startsWith("0x")) {
+			digits = digits.substring(2);
+			radix  = 16;
+		}
+		BigInteger n = new BigInteger(digits, radix);
+		if (negative) {
+			n = n.negate();
+		}
+		if (n.bitLength() < 32) {
+			return factory.newAtom(n.intValue());
+		}
+		return factory.newAtom(n.bitLength() < 64 ? (Number) n.longValue(): n);
+	}
+	
 	private TERM literal(Token token) throws IOException, ParseException {
 		TERM term;
 		switch(token.kind) {
 		case VAR:      return factory.newVariable(token.value);
 		case FUNC_BGN: return complex(token.value);
 		case ATOM_STR: return factory.newAtom(token.value);
-		case ATOM_INT: return factory.newAtom(Integer.valueOf(token.value));
-		case ATOM_FPN: return factory.newAtom( Double.valueOf(token.value));
+		case ATOM_INT: return integer(token.value);
+		case ATOM_FPN: return factory.newAtom(Double.parseDouble(token.value));
 		case SPECIAL:
 			switch(token.value.charAt(0)) {
 			case '(': return (term = term(true, ")")) == null ? factory.newAtom("()"): term;
@@ -18,6 +18,11 @@ public abstract class TermFactory<TERM> {
 	 */
 	public abstract TERM newAtom(int value);
 	
+	/**
+	 * intの範囲を超える整数値アトム({@link Long}または{@link java.math.BigInteger})を生成します。
+	 */
+	public abstract TERM newAtom(Number value);
+	
 	/**
 	 * 実数値アトムを生成します。
 	 */
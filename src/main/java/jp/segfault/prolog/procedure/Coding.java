@@ -12,7 +12,8 @@ import jp.segfault.prolog.Binding;
 import jp.segfault.prolog.Predicate;
 import jp.segfault.prolog.Query;
 import jp.segfault.prolog.State;
-import jp.segfault.prolog.Unifier;
+import jp.segfault.prolog.Table;
+import jp.segfault.prolog.code.Arithmetic;
 import jp.segfault.prolog.code.Choice;
 import jp.segfault.prolog.code.Code;
 import jp.segfault.prolog.code.Cut;
@@ -41,40 +42,77 @@ public class Coding extends Procedure {
 	
 	private final Map<String,Variable> vars;
 
+	// 頭部の照合の手順
+	private final HeadMatcher matcher;
+
+	// 本体から呼び出す述語
+	private final List<Predicate> dependencies;
+
 	public Coding(Functor head, Code body) {
 		this(null, head, body);
 	}
 	
 	public Coding(Functor clause, Functor head, Code body) {
+		this(clause, head, body, Collections.<Predicate>emptyList());
+	}
+
+	public Coding(Functor clause, Functor head, Code body, List<Predicate> dependencies) {
 		this.clause = clause;
+		this.dependencies = dependencies;
 		VariableIndexer indexer = new VariableIndexer();
 		this.head = head == null ? null :(Functor) head.accept(null, indexer);
 		this.body = body.accept(indexer);
 		this.vars = indexer.getMap(); // 変数表
+		this.matcher = this.head == null ? null: new HeadMatcher(this.head);
 	}
 	
 	public static Coding create(State state, Functor clause) {
+		if (state.isSharing()) {
+			clause = share(clause);
+		}
 		if (CLAUSE.equals(clause.predicate()) && clause.get(0) instanceof Functor) {
+			Compile compile = new Compile(state, clause.get(1));
 			return new Coding(clause, (Functor) clause.get(0),
-					new Compile(state, clause.get(1)).getCode());
+					compile.getCode(), compile.getDependencyList());
 		}
 		if (Arrays.asList(DIRECTIVE, QUERY).contains(clause.predicate())) {
-			return new Coding(clause, null, new Compile(state, clause.get(0)).getCode());
+			Compile compile = new Compile(state, clause.get(0));
+			return new Coding(clause, null, compile.getCode(), compile.getDependencyList());
 		}
 		return new Coding(clause, clause, Result.True);
 	}
 
+	// 節の引数に含まれる基底項を共有する。節そのものは節ごとに異なるので表に登録しない
+	private static Functor share(Functor clause) {
+		Term[] args = null;
+		for (int i = 0; i < clause.arity(); ++i) {
+			Term arg = Functor.intern(clause.get(i));
+			if (arg != clause.get(i)) {
+				if (args == null) {
+					args = clause.args().clone();
+				}
+				args[i] = arg;
+			}
+		}
+		return args == null ? clause: Functor.create(clause.predicate(), args);
+	}
+
+	@Override
+	public Code call(Query query, int ancestry, Binding caller, Code next, Term[] args) {
+		// 明らかに単一化出来ない節は、コールフレームを作らずに失敗する
+		if (matcher != null && matcher.reject(caller, args)) {
+			return Result.Fail;
+		}
+		return super.call(query, ancestry, caller, next, args);
+	}
+
 	@Override
 	public Code call(Query query, Binding caller, Term[] args) {
 		if (head != null) {
 			// System.err.println("call: "+ head +", depth="+ (caller.depth + 1));
-			Unifier unifier = new Unifier(query);
-			for (int i = 0; i < head.arity(); ++i) {
-				if (!unifier.exec(args[i], caller, head.get(i), query.callee)) {
-					return Result.Fail;
-				}
+			if (!matcher.match(query, caller, args)) {
+				return Result.Fail;
 			}
-			unifier.commit(query);
 		}
 		return body;
 	}
@@ -91,6 +129,13 @@ public class Coding extends Procedure {
         return Atom.TRUE;
     }
 
+	/**
+	 * 本体から直接呼び出す述語です。call/1 などで間接的に呼び出す述語は含みません。
+	 */
+	public List<Predicate> dependencies() {
+		return dependencies;
+	}
+
 	/**
 	 * 変数名と変数の対応表です。
 	 */
@@ -148,9 +193,15 @@ public class Coding extends Procedure {
 				if (predicate.equals(CUT)) {
 					return new Cut(next);
 				}
-				// A -> B ==> A, !, B
+				// A -> B ==> (A, !, B) ただし ! はこの選択肢だけを切る
 				if (predicate.equals(IF_THEN)) {
-					return disj(functor.get(0), new Cut(disj(functor.get(1), next)));
+					return new Choice(new Code[] {
+						disj(functor.get(0), new Cut(disj(functor.get(1), next), true))
+					}, true);
+				}
+				Code code = arithmetic(functor, next);
+				if (code != null) {
+					return code;
 				}
 				dependencyList.add(predicate);
 				return new Select(next, functor.args(), state.getTable(predicate, true));
@@ -161,6 +212,22 @@ public class Coding extends Procedure {
 			throw new IllegalArgumentException("term: "+ term);
 		}
 
+		/**
+		 * is/2 と算術比較を{@link Arithmetic}に変換します。
+		 * <p>述語が組み込みのままでない(節が追加されている)場合はnullを返し、通常の呼び出しにします。</p>
+		 */
+		private Code arithmetic(Functor functor, Code next) {
+			Arithmetic.Operator operator = Arithmetic.Operator.of(functor.predicate());
+			if (operator == null) {
+				return null;
+			}
+			Table table = state.getTable(operator.predicate);
+			if (table == null || table.rows().size() != 1 || !(table.rows().get(0) instanceof Foreign)) {
+				return null;
+			}
+			return new Arithmetic(next, functor.args(), operator);
+		}
+
 		private Code disj(Term term, Code next) {
 			ArrayDeque<Term> worklist = new ArrayDeque<>();
 			ArrayDeque<Code>    codes = new ArrayDeque<>();
@@ -174,16 +241,14 @@ public class Coding extends Procedure {
 						Term B = complex.get(1);
 						Term C;
 						// A -> C; B
+						// C と B の後には何も実行しないので、末尾のゴールはそのまま末尾呼び出しになる
 						if (A instanceof Complex
 								&& IF_THEN.equals((complex = (Complex) A).predicate()))
 						{
-							Code cut = new Cut(next, true);
 							A = complex.get(0);
 							C = complex.get(1);
 							codes.addLast(new Choice(new Code[] {
-								new Choice(new Code[] {
-									disj(A, new Cut(disj(C, cut), true))
-								}, true), disj(B, cut)
+								disj(A, new Cut(disj(C, next), true)), disj(B, next)
 							}, true));
 						}
 						else {
@@ -222,11 +287,11 @@ public class Coding extends Procedure {
 			if (term.isDefinite()) {
 				return term;
 			}
-			ArrayList<Term> args = new ArrayList<Term>(term.arity());
-			for (Term arg : term.args()) {
-				args.add(arg.accept(null, this));
+			Term[] args = new Term[term.arity()];
+			for (int i = 0; i < args.length; ++i) {
+				args[i] = term.get(i).accept(null, this);
 			}
-			return Functor.create(term.name(), args);
+			return Functor.create(term.predicate(), args);
 		}
 
 		@Override
@@ -17,17 +17,23 @@ import java.net.URLClassLoader;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import jp.segfault.prolog.ArithmeticExpressionEvaluator;
 import jp.segfault.prolog.Binding;
+import jp.segfault.prolog.Isolate;
+import jp.segfault.prolog.OrParallel;
 import jp.segfault.prolog.Predicate;
 import jp.segfault.prolog.Query;
 import jp.segfault.prolog.QueryException;
 import jp.segfault.prolog.State;
+import jp.segfault.prolog.Table;
 import jp.segfault.prolog.Unifier;
 import jp.segfault.prolog.code.Call;
 import jp.segfault.prolog.code.Code;
@@ -38,6 +44,7 @@ import jp.segfault.prolog.parser.ParseException;
 import jp.segfault.prolog.parser.TermParser;
 import jp.segfault.prolog.term.Atom;
 import jp.segfault.prolog.term.Atomic;
+import jp.segfault.prolog.term.Comp;
 import jp.segfault.prolog.term.CompRef;
 import jp.segfault.prolog.term.Complex;
 import jp.segfault.prolog.term.Functor;
@@ -119,6 +126,46 @@ public abstract class Foreign extends Procedure {
 		}
 	};
 
+	// :- table p/2, q/3.
+	@Declaration("table/1")
+	public static final Foreign TABLE = new Foreign() {
+		@Override
+		protected Code call0(Query query, Term... args) {
+			Term specs = args[0];
+			for (;;) {
+				Functor spec = specs.functor();
+				if (!Predicate.CONJUNCTION.equals(spec.predicate())) {
+					table(query, spec);
+					return True;
+				}
+				table(query, spec.get(0).functor());
+				specs = spec.get(1);
+			}
+		}
+
+		private void table(Query query, Functor spec) {
+			Predicate predicate = Predicate.of(spec);
+			if (predicate == null) {
+				throw QueryException.type_error(Atom.make("predicate_indicator"), spec);
+			}
+			query.state.getTable(predicate, true).table();
+		}
+	};
+
+	@Declaration("abolish_all_tables/0")
+	public static final Foreign ABOLISH_ALL_TABLES = new Foreign() {
+		@Override
+		protected Code call0(Query query, Term... args) {
+			for (Predicate predicate: query.state.predicates()) {
+				Table table = query.state.getTable(predicate);
+				if (table.tabling() != null) {
+					table.tabling().clear();
+				}
+			}
+			return True;
+		}
+	};
+
 	@Declaration("retract/1")
 	public static final Foreign RETRACT$1 = new Foreign() {
 		@Override
@@ -127,18 +174,24 @@ public abstract class Foreign extends Procedure {
 			if (Predicate.CLAUSE.equals(head.predicate())) {
 				head = head.get(0).functor();
 			}
-			Iterator<Procedure> i = query.state.select(head.predicate()).iterator();
-			while (i.hasNext()) {
-				Procedure procedure = i.next();
+			ArrayList<Procedure> matches = new ArrayList<Procedure>();
+			for (Procedure procedure : query.state.select(head.predicate())) {
 				if (procedure instanceof Coding) {
-					query.callee.expandLocal(procedure.locals());
+					Coding coding = (Coding) procedure;
+					Term clause = Predicate.CLAUSE.equals(coding.clause.predicate())
+							? Functor.create(":-", coding.head, coding.getBodyTerm())
+							: coding.head;
 					Unifier unifier = new Unifier(query);
-					if (unifier.exec(args[0], ((Coding) procedure).clause.bind(query.callee))) {
+					if (unifier.exec(args[0], clause.rebind(query.callee))) {
 						unifier.rollback();
-						i.remove();
+						matches.add(procedure);
 					}
 				}
 			}
+			// インデックスも更新されるように、テーブルを介して削除する
+			for (Procedure procedure : matches) {
+				query.state.delete(head.predicate(), procedure);
+			}
 			return True;
 		}
 	};
@@ -182,6 +235,35 @@ public abstract class Foreign extends Procedure {
 		}
 	};
 	
+	// table_index_info(edge/3, [rows(N), indexes([1,2]), bound([C1,C2,C3]), selected(2)]).
+	// bound と selected は、Prolog Flag の index_statistics が yes の間の呼び出しだけを記録する
+	@Declaration("table_index_info/2")
+	public static final Foreign TABLE_INDEX_INFO = new Foreign() {
+		@Override
+		protected Code call0(Query query, Term... args) {
+			Predicate predicate = Predicate.of(args[0]);
+			Table table = predicate != null ? query.state.getTable(predicate): null;
+			if (table == null) {
+				throw QueryException.existence_error(Atom.PROCEDURE, args[0]);
+			}
+			// Functor.list は逆順にリストを作るので、後ろから詰める
+			ArrayDeque<Term> positions = new ArrayDeque<Term>();
+			for (int i: table.indexedPositions()) {
+				positions.push(Term.valueOf(i + 1));
+			}
+			ArrayDeque<Term> counts = new ArrayDeque<Term>();
+			for (int i = 0; i < predicate.arity; ++i) {
+				counts.push(Term.valueOf(table.boundCount(i)));
+			}
+			int selected = table.selectedPosition();
+			return UNIFY.call(query, args[1], Functor.list(
+					Functor.create("selected", selected < 0 ? Term.valueOf("none"): Term.valueOf(selected + 1)),
+					Functor.create("bound"   , Functor.list(counts)),
+					Functor.create("indexes" , Functor.list(positions)),
+					Functor.create("rows"    , Term.valueOf(table.rows().size()))));
+		}
+	};
+	
 	@Declaration("clause/2")
 	public static final Foreign CLAUSE = new Foreign() {
 		@Override
@@ -411,6 +493,7 @@ public abstract class Foreign extends Procedure {
 			Binding callee = query.callee;
 			callee.setSlot(CATCHER_SLOT, args[1]);
 			callee.setSlot(HANDLER_SLOT, args[2]);
+			query.setCatchPoint();
 			// Noop を挟むのは、tail-callの最適化を回避するため
 			return new Call(new Noop(True), new Term[]{ args[0] }, CALL);
 		}
@@ -515,7 +598,7 @@ public abstract class Foreign extends Procedure {
 	public static final Foreign IS = new Foreign() {
 		@Override
 		protected Code call0(Query query, Term... args) {
-			return UNIFY.call(query, args[0], Term.valueOf(eval(args[1])));
+			return UNIFY.call(query, args[0], eval(args[1]));
 		}
 	};
 
@@ -523,7 +606,31 @@ public abstract class Foreign extends Procedure {
 	public static final Foreign LESS_THAN = new Foreign() {
 		@Override
 		protected Code call0(Query query, Term... args) {
-			return Result.valueOf(eval(args[0]) < eval(args[1]));
+			return Result.valueOf(ArithmeticExpressionEvaluator.compare(args[0], args[1]) < 0);
+		}
+	};
+
+	@Declaration(">/2")
+	public static final Foreign GREATER_THAN = new Foreign() {
+		@Override
+		protected Code call0(Query query, Term... args) {
+			return Result.valueOf(ArithmeticExpressionEvaluator.compare(args[0], args[1]) > 0);
+		}
+	};
+
+	@Declaration("=</2")
+	public static final Foreign LESS_OR_EQUAL = new Foreign() {
+		@Override
+		protected Code call0(Query query, Term... args) {
+			return Result.valueOf(ArithmeticExpressionEvaluator.compare(args[0], args[1]) <= 0);
+		}
+	};
+
+	@Declaration(">=/2")
+	public static final Foreign GREATER_OR_EQUAL = new Foreign() {
+		@Override
+		protected Code call0(Query query, Term... args) {
+			return Result.valueOf(ArithmeticExpressionEvaluator.compare(args[0], args[1]) >= 0);
 		}
 	};
 	
@@ -531,7 +638,15 @@ public abstract class Foreign extends Procedure {
 	public static final Foreign EQUAL = new Foreign() {
 		@Override
 		protected Code call0(Query query, Term... args) {
-			return Result.valueOf(eval(args[0]) == eval(args[1]));
+			return Result.valueOf(ArithmeticExpressionEvaluator.compare(args[0], args[1]) == 0);
+		}
+	};
+
+	@Declaration("=\\=/2")
+	public static final Foreign NOT_EQUAL = new Foreign() {
+		@Override
+		protected Code call0(Query query, Term... args) {
+			return Result.valueOf(ArithmeticExpressionEvaluator.compare(args[0], args[1]) != 0);
 		}
 	};
 	
@@ -662,7 +777,7 @@ public abstract class Foreign extends Procedure {
 		@Override
 		protected Code call0(Query query, Term... args) {
 			return Result.valueOf(args[0] instanceof Numeric
-					&& ((Numeric) args[0]).value() instanceof Integer);
+					&& ((Numeric) args[0]).isInteger());
 		}
 	};
 
@@ -671,7 +786,7 @@ public abstract class Foreign extends Procedure {
 		@Override
 		protected Code call0(Query query, Term... args) {
 			return Result.valueOf(args[0] instanceof Numeric
-					&& ((Numeric) args[0]).value() instanceof Double);
+					&& !((Numeric) args[0]).isInteger());
 		}
 	};
 	
@@ -969,6 +1084,29 @@ public abstract class Foreign extends Procedure {
 		}
 	};
 
+	// statistics(hash_consing, [requests(R), shared(S), entries(E), ratio(S/R)]).
+	@Declaration("statistics/2")
+	public static final Foreign STATISTICS = new Foreign() {
+		@Override
+		protected Code call0(Query query, Term... args) {
+			if (args[0] instanceof Variable) {
+				throw QueryException.instantiation_error();
+			}
+			if (args[0] != HASH_CONSING) {
+				throw QueryException.domain_error(Atom.make("statistics_key"), args[0]);
+			}
+			long[] stat = Comp.internStatistics();
+			// Functor.list は逆順にリストを作るので、後ろから並べる
+			return UNIFY.call(query, args[1], Functor.list(
+					Functor.create("ratio"   , Term.valueOf(stat[0] == 0 ? 0.0: (double) stat[1] / stat[0])),
+					Functor.create("entries" , Term.valueOf(stat[2])),
+					Functor.create("shared"  , Term.valueOf(stat[1])),
+					Functor.create("requests", Term.valueOf(stat[0]))));
+		}
+	};
+
+	private static final Atom HASH_CONSING = Atom.make("hash_consing");
+
 	@Declaration("random/1")
 	public static final Foreign RANDOM = new Foreign() {
 
@@ -1023,11 +1161,16 @@ public abstract class Foreign extends Procedure {
 			return UNIFY.call(query, args[0], new Thunk() {
 				@Override
 				public Term strip() {
-					List<Term> result = new Query(state, coding).ask();
-					if (result == null) {
-						throw QueryException.instantiation_error();
+					Query query = new Query(state, coding);
+					try {
+						List<Term> result = query.ask();
+						if (result == null) {
+							throw QueryException.instantiation_error();
+						}
+						return result.get(coding.vars().get(bridge.name()).id());
+					} finally {
+						query.close();
 					}
-					return result.get(coding.vars().get(bridge.name()).id());
 				}
 			});
 		}
@@ -1047,20 +1190,226 @@ public abstract class Foreign extends Procedure {
 		}
 	};
 
-	// TODO
+	private static final Atom ISOLATE_TYPE = Atom.make("isolate");
+
+	// isolate(Goal, Handle): Goal の最初の解を別のスレッドで探し始める
 	@Declaration("isolate/2")
 	public static final Foreign ISOLATE = new Foreign() {
 		@Override
 		protected Code call0(Query query, Term... args) {
+			if (args[0] instanceof Variable) {
+				throw QueryException.instantiation_error();
+			}
+			return UNIFY.call(query, args[1],
+					Term.valueOf(new Isolate(query.state, args[0], args[0], 1)));
+		}
+	};
+
+	// isolate_all(Template, Goal, Handle): Goal の全ての解の Template を別のスレッドで集め始める
+	@Declaration("isolate_all/3")
+	public static final Foreign ISOLATE_ALL = new Foreign() {
+		@Override
+		protected Code call0(Query query, Term... args) {
+			if (args[1] instanceof Variable) {
+				throw QueryException.instantiation_error();
+			}
+			return UNIFY.call(query, args[2],
+					Term.valueOf(new Isolate(query.state, args[0], args[1], Isolate.ALL)));
+		}
+	};
+
+	// isolate_join(Handle, Result): 終わるのを待って、isolate/2 なら解いた Goal を、
+	// isolate_all/3 なら解のリストを Result と単一化する。解が無いか中断されていれば失敗する
+	@Declaration("isolate_join/2")
+	public static final Foreign ISOLATE_JOIN = new Foreign() {
+		@Override
+		protected Code call0(Query query, Term... args) {
+			Isolate isolate = args[0].cast(Isolate.class, ISOLATE_TYPE);
+			List<Term> results;
+			try {
+				results = isolate.join();
+			} catch (QueryException e) {
+				throw new QueryException(e.term.rebind(query.callee));
+			}
+			if (results == null) {
+				return Fail;
+			}
+			if (isolate.limit() == 1) {
+				return results.isEmpty() ? Fail:
+					UNIFY.call(query, args[1], results.get(0).rebind(query.callee));
+			}
+			ArrayDeque<Term> list = new ArrayDeque<Term>();
+			for (Term result: results) {
+				list.push(result);
+			}
+			return UNIFY.call(query, args[1], Functor.list(list).rebind(query.callee));
+		}
+	};
+
+	// isolate_cancel(Handle): 実行を中断する。終わっていれば何もしない
+	@Declaration("isolate_cancel/1")
+	public static final Foreign ISOLATE_CANCEL = new Foreign() {
+		@Override
+		protected Code call0(Query query, Term... args) {
+			args[0].cast(Isolate.class, ISOLATE_TYPE).cancel();
 			return True;
 		}
 	};
 
+	// parallel_findall(Template, Goal, List): findall/3 と同じ結果を、探索木の枝を並列に実行して求める
+	@Declaration("parallel_findall/3")
+	public static final Foreign PARALLEL_FINDALL = new Foreign() {
+		@Override
+		protected Code call0(Query query, Term... args) {
+			if (args[1] instanceof Variable) {
+				throw QueryException.instantiation_error();
+			}
+			List<Term> results;
+			try {
+				results = OrParallel.findall(query.state, args[0], args[1]);
+			} catch (QueryException e) {
+				throw new QueryException(e.term.rebind(query.callee));
+			}
+			ArrayDeque<Term> list = new ArrayDeque<Term>();
+			for (Term result: results) {
+				list.push(result);
+			}
+			return UNIFY.call(query, args[2], Functor.list(list).rebind(query.callee));
+		}
+	};
+
+	// A & B: 変数を共有しない A と B を、それぞれ別のスレッドのクエリで同時に実行する。
+	// 両方の最初の解が見つかった時点で、(A, B) と同じ順に組み合わせた解を返し始める。残りの解はバックトラックした時に受け取る。
+	// 片方に解が無いか例外をスローすれば、もう片方を待たずに中断する。変数を共有していれば (A, B) と同じ
+	@Declaration("&/2")
+	public static final Foreign PARALLEL_CONJ = new Foreign() {
+		@Override
+		protected Code call0(final Query query, final Term... args) {
+			if (args[0] instanceof Variable || args[1] instanceof Variable) {
+				throw QueryException.instantiation_error();
+			}
+			HashSet<Variable> vars = new HashSet<Variable>(args[0].extract());
+			for (Variable var: args[1].extract()) {
+				if (var != Variable._ && vars.contains(var)) {
+					return new Call(new Call(True, new Term[]{args[1]}, CALL), new Term[]{args[0]}, CALL);
+				}
+			}
+			LinkedBlockingQueue<Isolate> ready = new LinkedBlockingQueue<Isolate>();
+			Isolate left  = new Isolate(query.state, args[0], args[0], ready);
+			Isolate right = new Isolate(query.state, args[1], args[1], ready);
+			Term a = null;
+			Term b = null;
+			try {
+				// 先に結果が出た方から受け取る。readyにはそれぞれ一度だけ追加される
+				while (a == null || b == null) {
+					Isolate isolate = ready.take();
+					Term first = isolate.next();
+					if (first == null) {
+						break;
+					}
+					if (isolate == left) {
+						a = first;
+					} else {
+						b = first;
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CancellationException("&/2: interrupted");
+			} catch (QueryException e) {
+				throw new QueryException(e.term.rebind(query.callee));
+			} finally {
+				if (a == null || b == null) {
+					left.cancel();
+					right.cancel();
+				}
+			}
+			if (a == null || b == null) {
+				return Fail;
+			}
+			query.setChoicePoint(new ParallelConjunction(query, args, left, right, a, b));
+			return Fail;
+		}
+	};
+
+	/**
+	 * A & B の解の組み合わせを、(A, B) と同じ順に返す候補です。
+	 * <p>Bの解は、Aの次の解と組み合わせる為に覚えておきます。
+	 * カットなどで捨てられた時は、まだ実行している方を中断します。</p>
+	 */
+	private static class ParallelConjunction extends UnmodifiableIterator<Code> implements AutoCloseable {
+
+		private final Query   query;
+		private final Binding callee;
+		private final Term[]  args;
+		private final Isolate left;
+		private final Isolate right;
+
+		// 受け取ったBの解と、Bの解を全て受け取ったかどうか
+		private final ArrayList<Term> bs = new ArrayList<Term>();
+		private boolean rightDone;
+
+		// 組み合わせているAの解(nullなら解はもう無い)と、次に組み合わせるBの解の位置
+		private Term a;
+		private int  j;
+
+		ParallelConjunction(Query query, Term[] args, Isolate left, Isolate right, Term a, Term b) {
+			this.query  = query;
+			this.callee = query.callee;
+			this.args   = args;
+			this.left   = left;
+			this.right  = right;
+			this.a      = a;
+			bs.add(b);
+		}
+
+		// Queryは解を返す前にも呼び出すので、次の解を待たずに答える。解がもう無いと分かるのはnext()の中
+		@Override
+		public boolean hasNext() {
+			return a != null;
+		}
+
+		@Override
+		public Code next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			if (j == bs.size()) {
+				try {
+					Term b = rightDone ? null: right.next();
+					if (b != null) {
+						bs.add(b);
+					} else {
+						rightDone = true;
+						a = left.next();
+						j = 0;
+					}
+				} catch (QueryException e) {
+					a = null;
+					close();
+					throw new QueryException(e.term.rebind(callee));
+				}
+				if (a == null) {
+					return Fail;
+				}
+			}
+			Term b = bs.get(j++);
+			return UNIFY.call(query, args[0], a.rebind(callee)) == Fail ? Fail:
+				UNIFY.call(query, args[1], b.rebind(callee));
+		}
+
+		@Override
+		public void close() {
+			left.cancel();
+			right.cancel();
+		}
+	}
+
 	//--------------------------
 	// ユーティリティ
 	//--------------------------
 	
-	public static Integer eval(Term expr) {
+	public static Numeric eval(Term expr) {
 		return ArithmeticExpressionEvaluator.evaluate(expr);
 	}
 	
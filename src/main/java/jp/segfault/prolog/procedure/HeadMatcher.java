@@ -0,0 +1,255 @@
+package jp.segfault.prolog.procedure;
+
+import java.util.HashSet;
+
+import jp.segfault.prolog.Binding;
+import jp.segfault.prolog.Query;
+import jp.segfault.prolog.Unifier;
+import jp.segfault.prolog.term.Atom;
+import jp.segfault.prolog.term.Comp;
+import jp.segfault.prolog.term.CompRef;
+import jp.segfault.prolog.term.Complex;
+import jp.segfault.prolog.term.Functor;
+import jp.segfault.prolog.term.Numeric;
+import jp.segfault.prolog.term.Term;
+import jp.segfault.prolog.term.Var;
+import jp.segfault.prolog.term.VarRef;
+import jp.segfault.prolog.term.Variable;
+
+/**
+ * 節の頭部を、引数ごとの照合の手順にコンパイルしたものです。
+ * <p>{@link jp.segfault.prolog.Program}の get/unify 命令と同じ考え方で、節を assert や consult した時に作成します。
+ * 呼び出し側の引数の関数子や定数が頭部と合わない節は、コールフレームを作る前に{@link #reject}で除外できます。
+ * 頭部に初めて現れる変数は、単一化を経由せずにスロットに直接設定します。</p>
+ * @author shun
+ */
+final class HeadMatcher {
+
+	// 照合の種類
+	private static final int VOID      = 0; // 無名変数
+	private static final int VARIABLE  = 1; // 初めて現れる変数: スロットに設定する
+	private static final int VALUE     = 2; // 既に現れた変数: 汎用の単一化
+	private static final int CONSTANT  = 3; // アトム、数値、基底項: 値の比較
+	private static final int STRUCTURE = 4; // 複合項: 関数子を比べて引数ごとに照合する
+	private static final int TERM      = 5; // その他: 汎用の単一化
+
+	private final Term[]  args;
+	private final int[]   kinds;
+	private final int[]   slots;
+
+	// STRUCTURE の引数ごとの種類とスロット
+	private final int[][] subKinds;
+	private final int[][] subSlots;
+
+	HeadMatcher(Functor head) {
+		int arity = head.arity();
+		args     = head.args().clone();
+		kinds    = new int[arity];
+		slots    = new int[arity];
+		subKinds = new int[arity][];
+		subSlots = new int[arity][];
+		HashSet<Integer> seen = new HashSet<Integer>();
+		for (int i = 0; i < arity; ++i) {
+			Term arg = args[i];
+			kinds[i] = kind(arg, seen, slots, i);
+			if (kinds[i] == STRUCTURE) {
+				Complex complex = (Complex) arg;
+				subKinds[i] = new int[complex.arity()];
+				subSlots[i] = new int[complex.arity()];
+				for (int j = 0; j < complex.arity(); ++j) {
+					subKinds[i][j] = kind(complex.get(j), seen, subSlots[i], j);
+					if (subKinds[i][j] == STRUCTURE) {
+						// 入れ子の構造は汎用の単一化に任せる
+						mark(complex.get(j), seen);
+						subKinds[i][j] = TERM;
+					}
+				}
+			}
+			else if (kinds[i] == TERM) {
+				mark(arg, seen);
+			}
+		}
+	}
+
+	private static int kind(Term term, HashSet<Integer> seen, int[] slots, int i) {
+		if (term == Variable._) {
+			return VOID;
+		}
+		if (term instanceof Var) {
+			slots[i] = ((Var) term).id;
+			return seen.add(slots[i]) ? VARIABLE: VALUE;
+		}
+		if (term instanceof Atom || term instanceof Numeric
+				|| term instanceof Comp && ((Comp) term).isGround()) {
+			return CONSTANT;
+		}
+		if (term instanceof Complex) {
+			return STRUCTURE;
+		}
+		return TERM;
+	}
+
+	// 汎用の単一化に任せる項に含まれる変数は、以降の出現で値を上書きしないようにする
+	private static void mark(Term term, HashSet<Integer> seen) {
+		for (Variable var: term.extract()) {
+			if (var instanceof Var) {
+				seen.add(((Var) var).id);
+			}
+		}
+	}
+
+	/**
+	 * 呼び出し側の引数が、明らかに頭部と単一化出来なければtrueを返します。
+	 * <p>変数を辿るだけで、オブジェクトを作成しません。</p>
+	 */
+	boolean reject(Binding caller, Term[] args) {
+		for (int i = 0; i < kinds.length; ++i) {
+			if (kinds[i] == CONSTANT || kinds[i] == STRUCTURE) {
+				Term    value   = args[i];
+				Binding binding = caller;
+				if (value instanceof Variable) {
+					value   = deref(value, caller);
+					binding = null;
+				}
+				if (value instanceof CompRef) {
+					binding = ((CompRef) value).binding;
+					value   = ((CompRef) value).comp;
+				}
+				if (reject(this.args[i], value)) {
+					return true;
+				}
+				if (kinds[i] == STRUCTURE && value instanceof Complex) {
+					// 一段だけ、引数の定数も比べる
+					Complex complex = (Complex) value;
+					for (int j = 0; j < subKinds[i].length; ++j) {
+						if (subKinds[i][j] == CONSTANT && reject(
+								((Complex) this.args[i]).get(j), deref(complex.get(j), binding))) {
+							return true;
+						}
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	// 頭部の定数または複合項 head と、辿った値 value が単一化出来なければtrue。未束縛(null)は単一化出来る
+	private static boolean reject(Term head, Term value) {
+		if (value == null || value instanceof Variable) {
+			return false;
+		}
+		if (head instanceof Complex) {
+			if (!(value instanceof Complex)) {
+				return value instanceof Atom || value instanceof Numeric;
+			}
+			if (((Complex) head).predicate() != ((Complex) value).predicate()) {
+				return true;
+			}
+			return value instanceof Comp && ((Comp) value).isGround()
+					&& ((Comp) head).isGround() && !head.equals(value);
+		}
+		return (value instanceof Atom || value instanceof Numeric || value instanceof Complex)
+				&& !head.equals(value);
+	}
+
+	// 変数をオブジェクトを作らずに辿る。未束縛ならnullを返す
+	private static Term deref(Term term, Binding binding) {
+		for (;;) {
+			if (term instanceof VarRef) {
+				binding = ((VarRef) term).binding;
+				term    = ((VarRef) term).var;
+			}
+			if (term == Variable._) {
+				return null;
+			}
+			if (!(term instanceof Var)) {
+				return term;
+			}
+			if (binding == null || (term = binding.getSlot(((Var) term).id)) == null) {
+				return null;
+			}
+			binding = null; // スロットの値はコールフレームに依存しない
+		}
+	}
+
+	/**
+	 * 呼び出し側の引数と頭部を単一化し、成功すれば結果を環境に反映します。
+	 * <p>コールフレームは{@link Query#callee}に作成済みでなければいけません。</p>
+	 * @return 成功すればtrue
+	 */
+	boolean match(Query query, Binding caller, Term[] args) {
+		final Unifier unifier = query.getUnifier();
+		final Binding callee  = query.callee;
+		for (int i = 0; i < kinds.length; ++i) {
+			switch (kinds[i]) {
+			case VOID:
+				break;
+			case VARIABLE: {
+				Term value = unifier.resolve(args[i].bind(caller));
+				if (value != Variable._) {
+					callee.setSlot(slots[i], value);
+				}
+				break;
+			}
+			case CONSTANT:
+				if (!unifier.unifyConstant(this.args[i], args[i].bind(caller))) {
+					return false;
+				}
+				break;
+			case STRUCTURE: {
+				Term value = unifier.resolve(args[i].bind(caller));
+				if (!(value instanceof Complex)) {
+					// 変数などは汎用の単一化に任せる
+					if (!unifier.exec(args[i], caller, this.args[i], callee)) {
+						return false;
+					}
+					break;
+				}
+				Complex structure = (Complex) value;
+				Complex head      = (Complex) this.args[i];
+				if (structure.predicate() != head.predicate()) {
+					unifier.rollback();
+					return false;
+				}
+				if (!match(unifier, callee, structure, head, subKinds[i], subSlots[i])) {
+					return false;
+				}
+				break;
+			}
+			default: // VALUE, TERM
+				if (!unifier.exec(args[i], caller, this.args[i], callee)) {
+					return false;
+				}
+			}
+		}
+		unifier.commit(query);
+		return true;
+	}
+
+	private static boolean match(Unifier unifier, Binding callee,
+			Complex structure, Complex head, int[] kinds, int[] slots) {
+		for (int j = 0; j < kinds.length; ++j) {
+			switch (kinds[j]) {
+			case VOID:
+				break;
+			case VARIABLE: {
+				Term sub = structure.get(j);
+				if (sub != Variable._) {
+					callee.setSlot(slots[j], sub);
+				}
+				break;
+			}
+			case CONSTANT:
+				if (!unifier.unifyConstant(head.get(j), structure.get(j))) {
+					return false;
+				}
+				break;
+			default: // VALUE, TERM
+				if (!unifier.exec(head.get(j), callee, structure.get(j), null)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+}
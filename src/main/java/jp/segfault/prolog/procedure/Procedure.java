@@ -18,7 +18,7 @@ public abstract class Procedure {
 	public Code call(Query query,
 			int ancestry, Binding caller, Code next, Term[] args)
 	{
-		query.callee = new Binding(ancestry, this, next, query.callee, null);
+		query.callee = query.newBinding(ancestry, this, next, query.callee);
 		return call(query, caller, args);
 	}
 
@@ -31,8 +31,13 @@ public class PlScriptEngine extends AbstractScriptEngine {
 	public Object eval(Reader reader, ScriptContext context)
 			throws ScriptException {
 		try {
-			return new Query(state, Coding.create(state,
-					Functor.create("?-", state.newParser(reader).next()))).ask();
+			Query query = new Query(state, Coding.create(state,
+					Functor.create("?-", state.newParser(reader).next())));
+			try {
+				return query.ask();
+			} finally {
+				query.close();
+			}
 		} catch (IOException | ParseException e) {
 			throw new ScriptException(e);
 		}
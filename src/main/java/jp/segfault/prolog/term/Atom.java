@@ -1,11 +1,20 @@
 package jp.segfault.prolog.term;
 
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
+import jp.segfault.prolog.Predicate;
+
 /**
  * アトムを表現します。
+ * <p>アトムは値ごとに一つだけ作成される(intern される)ので、同値性は参照の比較で判定できます。</p>
  * @author shun
  */
 public class Atom extends Functor implements Atomic<String> {
 	
+	// 作成済みのアトムの表。どこからも参照されなくなったアトムは回収される
+	private static final WeakHashMap<String,WeakReference<Atom>> atoms = new WeakHashMap<String,WeakReference<Atom>>();
+	
 	// リスト
 	public static final Atom NIL  = Atom.make("[]");
 	public static final Atom CONS = Atom.make(".");
@@ -17,12 +26,19 @@ public class Atom extends Functor implements Atomic<String> {
 	public static final Atom EXISTENCE_ERROR     = Atom.make("existence_error");
 	public static final Atom SYNTAX_ERROR        = Atom.make("syntax_error");
 	public static final Atom IO_ERROR            = Atom.make("io_error");
+	public static final Atom EVALUATION_ERROR    = Atom.make("evaluation_error");
+	public static final Atom RESOURCE_ERROR      = Atom.make("resource_error");
 	
 	// エラータイプ
 	public static final Atom OPERATOR_PRIORITY  = Atom.make("operator_priority");
 	public static final Atom OPERATOR_SPECIFIER = Atom.make("operator_specifier");
 	public static final Atom SOURCE_SINK        = Atom.make("source_sink");
 	public static final Atom END_OF_FILE        = Atom.make("end_of_file");
+	public static final Atom EVALUABLE          = Atom.make("evaluable");
+	public static final Atom ZERO_DIVISOR       = Atom.make("zero_divisor");
+	public static final Atom UNDEFINED          = Atom.make("undefined");
+	public static final Atom FLOAT_OVERFLOW     = Atom.make("float_overflow");
+	public static final Atom MEMORY             = Atom.make("memory");
 
 	// データ型
 	public static final Atom ATOM      = Atom.make("atom");
@@ -47,21 +63,35 @@ public class Atom extends Functor implements Atomic<String> {
 	public static final Atom CYCLE = Atom.make("**");
 	
 	private final String value;
+	
+	// 必要になった時点で intern する
+	private Predicate predicate;
 
 	private Atom(String value) {
 		this.value = value;
 	}
 
 	/**
-	 * 指定した値を保持する{@link Atom}を作成します。
+	 * 指定した値を保持する{@link Atom}を返します。
+	 * <p>同じ値に対しては常に同じインスタンスを返します。</p>
 	 */
 	public static Atom make(String value) {
-		return new Atom(value);
+		synchronized (atoms) {
+			WeakReference<Atom> ref = atoms.get(value);
+			Atom atom = ref != null ? ref.get(): null;
+			if (atom == null) {
+				// 回収済みのエントリのキーが残っていると、新しいアトムより先にキーが回収されてしまう
+				atoms.remove(value);
+				atom = new Atom(value);
+				atoms.put(atom.value, new WeakReference<Atom>(atom));
+			}
+			return atom;
+		}
 	}
 
 	@Override
 	public boolean equals(Object o) {
-		return o instanceof Atom && value.equals(((Atom) o).value);
+		return this == o;
 	}
 
 	@Override
@@ -83,6 +113,15 @@ public class Atom extends Functor implements Atomic<String> {
 	public String name() {
 		return value;
 	}
+
+	@Override
+	public Predicate predicate() {
+		Predicate predicate = this.predicate;
+		if (predicate == null) {
+			this.predicate = predicate = Predicate.of(value, 0);
+		}
+		return predicate;
+	}
 	
 	/**
 	 * このアトムが保持する値です。
@@ -1,9 +1,12 @@
 package jp.segfault.prolog.term;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.WeakHashMap;
 
 import jp.segfault.prolog.Binding;
+import jp.segfault.prolog.Predicate;
 
 /**
  * 複合項を表します。
@@ -11,26 +14,124 @@ import jp.segfault.prolog.Binding;
  */
 public class Comp extends Complex {
 
-	private final String name;
-	private final Term[] args;
+	// 共有された基底項の表(hash-consing)。どこからも参照されなくなった項は回収される
+	private static final WeakHashMap<Comp,WeakReference<Comp>> instances = new WeakHashMap<Comp,WeakReference<Comp>>();
+
+	// 表を引いた回数と、既存の項が見つかった回数
+	private static long requests = 0;
+	private static long hits     = 0;
+
+	private final Predicate functor;
+	private final Term[]    args;
+
+	// 変数を含まない(基底項である)場合は、構造から計算したハッシュ値と項の大きさ(複合項の数)。
+	// そうでなければ size は0
+	private final int hash;
+	private final int size;
+
+	// 共有された基底項の表に登録されていればtrue。同値な項は表に一つしか無いので、
+	// 登録済みの項同士は参照の比較で同値性を判定できる
+	private boolean interned = false;
 
 	static Comp make(String name, List<Term> args) {
-		boolean forall = true;
+		return make(Predicate.of(name, args.size()), args.toArray(new Term[]{}));
+	}
+
+	/**
+	 * intern された関数子記述子で複合項を作成します。引数の配列はコピーされません。
+	 */
+	static Comp make(Predicate functor, Term[] args) {
+		assert functor.arity == args.length;
 		for (Term arg : args) {
 			if(!arg.isDefinite()) {
-				forall = false;
-				break;
+				return new Template(functor, args);
 			}
 		}
-		return forall
-			? new Instance(name, args.toArray(new Term[]{}))
-			: new Template(name, args.toArray(new Term[]{}));
+		return new Instance(functor, args);
 	}
 
-	private Comp(String name, Term[] args) {
+	private Comp(Predicate functor, Term[] args, boolean definite) {
 		assert args.length > 0;
-		this.name = name;
-		this.args = args;
+		this.functor = functor;
+		this.args    = args;
+		int  hash = functor.hashCode();
+		long size = 1;
+		if (definite) {
+			for (Term arg : args) {
+				if (arg instanceof Comp && ((Comp) arg).size > 0) {
+					hash  = hash * 31 + ((Comp) arg).hash;
+					size += ((Comp) arg).size;
+				}
+				else if (arg instanceof Atomic) {
+					hash  = hash * 31 + arg.hashCode();
+				}
+				else { // Thunk など
+					size = 0;
+					break;
+				}
+			}
+		}
+		this.hash = hash;
+		this.size = definite ? (int) Math.min(size, Integer.MAX_VALUE): 0;
+	}
+
+	/**
+	 * 変数を含まない項(基底項)であればtrueを返します。
+	 * <p>基底項同士は{@link #equals(Object)}で構造を比較できます。</p>
+	 */
+	public boolean isGround() {
+		return size > 0;
+	}
+
+	/**
+	 * 基底項であれば、含まれる複合項の数を返します。そうでなければ0を返します。
+	 */
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public int hashCode() {
+		return size > 0 ? hash: super.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (size > 0 && o instanceof Comp) {
+			return equals(this, (Comp) o);
+		}
+		return false;
+	}
+
+	// 基底項同士の構造を比較する。最後の引数はループで辿る
+	private static boolean equals(Comp x, Comp y) {
+		for (;;) {
+			if (x == y) {
+				return true;
+			}
+			if (x.interned && y.interned) {
+				return false;
+			}
+			if (x.hash != y.hash || x.size != y.size || !x.functor.equals(y.functor)) {
+				return false;
+			}
+			int last = x.args.length - 1;
+			for (int i = 0; i < last; ++i) {
+				if (!x.args[i].equals(y.args[i])) {
+					return false;
+				}
+			}
+			Term a = x.args[last];
+			Term b = y.args[last];
+			if (!(a instanceof Comp && b instanceof Comp)) {
+				return a.equals(b);
+			}
+			x = (Comp) a;
+			y = (Comp) b;
+		}
 	}
 
 	@Override
@@ -40,7 +141,12 @@ public class Comp extends Complex {
 	
 	@Override
 	public String name() {
-		return name;
+		return functor.id;
+	}
+
+	@Override
+	public Predicate predicate() {
+		return functor;
 	}
 
 	@Override
@@ -53,15 +159,74 @@ public class Comp extends Complex {
 		return args[i];
 	}
 
+	/**
+	 * 項に含まれる基底項の複合項を、共有された基底項の表に登録されたインスタンスに置き換えます。
+	 * <p>表に無ければ登録します。最後の引数はループで辿るので、長いリストでもスタックを消費しません。</p>
+	 */
+	static Term share(Term term) {
+		// 最後の引数を辿って未登録の複合項を集め、後ろから置き換える
+		ArrayList<Comp> spine = new ArrayList<Comp>();
+		while (term instanceof Comp && !((Comp) term).interned) {
+			Comp comp = (Comp) term;
+			spine.add(comp);
+			term = comp.args[comp.args.length - 1];
+		}
+		for (int k = spine.size() - 1; k >= 0; --k) {
+			Comp   comp = spine.get(k);
+			Term[] args = null;
+			int    last = comp.args.length - 1;
+			for (int i = 0; i <= last; ++i) {
+				Term arg = i < last ? share(comp.args[i]): term;
+				if (arg != comp.args[i]) {
+					if (args == null) {
+						args = comp.args.clone();
+					}
+					args[i] = arg;
+				}
+			}
+			if (args != null) {
+				comp = make(comp.functor, args);
+			}
+			term = comp.size > 0 ? lookup(comp): comp;
+		}
+		return term;
+	}
+
+	// 引数が全て登録済みの基底項を、表に登録されたインスタンスに置き換える
+	private static Comp lookup(Comp comp) {
+		synchronized (instances) {
+			requests++;
+			WeakReference<Comp> ref = instances.get(comp);
+			Comp shared = ref != null ? ref.get(): null;
+			if (shared != null) {
+				hits++;
+				return shared;
+			}
+			comp.interned = true;
+			instances.put(comp, new WeakReference<Comp>(comp));
+			return comp;
+		}
+	}
+
+	/**
+	 * 共有された基底項の表の統計を返します。
+	 * @return 表を引いた回数、既存の項が見つかった回数、登録されている項の数
+	 */
+	public static long[] internStatistics() {
+		synchronized (instances) {
+			return new long[]{ requests, hits, instances.size() };
+		}
+	}
+
 	private static class Instance extends Comp {
-		Instance(String name, Term[] args) { super(name, args); }
+		Instance(Predicate functor, Term[] args) { super(functor, args, true); }
 	}
 
 	private static class Template extends Comp
 			implements jp.segfault.prolog.term.Template {
 
-		Template(String name, Term[] args) {
-			super(name, args);
+		Template(Predicate functor, Term[] args) {
+			super(functor, args, false);
 		}
 
 		@Override
@@ -76,25 +241,6 @@ public class Comp extends Complex {
 			}
 			return new CompRef(this, binding);
 		}
-		
-		@Override
-		protected Term rebind(Binding binding, int[] counter, Map<Term,Term> done, int olderBound) {
-			Term key = binding == null ? this: new CompRef(this, binding);
-			Term val = done.get(key);
-			if (val == null) {
-				
-				// 無限再帰を防止
-				done.put(key, Atom.CYCLE);
-				
-				// 引数も全てrebindする
-				Term[] args = new Term[super.args.length];
-				for (int i = 0; i < args.length; ++i) {
-					args[i] = super.args[i].rebind(binding, counter, done, olderBound);
-				}
-				done.put(key, (val = Functor.create(super.name, args)));
-			}
-			return val;
-		}
 	}
 	
 }
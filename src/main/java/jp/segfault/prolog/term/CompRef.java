@@ -1,8 +1,7 @@
 package jp.segfault.prolog.term;
 
-import java.util.Map;
-
 import jp.segfault.prolog.Binding;
+import jp.segfault.prolog.Predicate;
 
 /**
  * 実体化された関数子を表現します。
@@ -41,16 +40,15 @@ public class CompRef extends Complex {
 		return false;
 	}
 	
-	@Override
-	protected Term rebind(Binding _, int[] counter, Map<Term,Term> done, int olderBound) {
-		return binding.ordinal < olderBound
-				? this: comp.rebind(binding, counter, done, olderBound);
-	}
-	
 	@Override
 	public String name() {
 		return comp.name();
 	}
+
+	@Override
+	public Predicate predicate() {
+		return comp.predicate();
+	}
 	
 	@Override
 	public Term[] args() {
@@ -0,0 +1,185 @@
+package jp.segfault.prolog.term;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import jp.segfault.prolog.Binding;
+import jp.segfault.prolog.Predicate;
+
+/**
+ * {@link Term#unbind()}と{@link Term#rebind(Binding)}の為に、コールフレームから切り離した項の複製を作成します。
+ * <p>複製済みの変数は、コールフレームの一時領域(テンポラリスロット)に印を付けて覚えておきます。
+ * 束縛済みの変数には、辿っている間は{@link Atom#CYCLE}を、辿り終えたらその値の複製を置くので、
+ * 循環した項も検出できます。変数を含まない複合項は複製しません。
+ * 最後の引数はループで辿るので、長いリストでもスタックを消費しません。</p>
+ * <p>印は{@link #clear()}で取り除くまで残るので、その間に単一化を行ってはいけません。</p>
+ * @author shun
+ */
+final class Copier {
+
+	// 変数の番号の次の値
+	int counter;
+
+	// これより古いコールフレームの変数は複製しない
+	private final int olderBound;
+
+	// 一時領域に印を付けた変数
+	private Binding[] marked = new Binding[16];
+	private int[]     ids    = new int[16];
+	private int       size   = 0;
+
+	// コールフレームに関連付けられていない変数の複製(名前で区別する)
+	private HashMap<String,Term> raw;
+
+	// 最後の引数を辿っている途中の複合項(下から組み立てる)
+	private Predicate[] functors = new Predicate[16];
+	private Term[][]    argss    = new Term[16][];
+	private int         height   = 0;
+
+	// 辿っている途中の束縛済みの変数と、その値にあたる複合項の高さ
+	private VarRef[] pending = new VarRef[16];
+	private int[]    levels  = new int[16];
+	private int      count   = 0;
+
+	Copier(int counter, int olderBound) {
+		this.counter    = counter;
+		this.olderBound = olderBound;
+	}
+
+	/**
+	 * コールフレームbindingにおける項termの複製を返します。
+	 */
+	Term copy(Term term, Binding binding) {
+		final int base  = height;
+		final int start = count;
+		Term result;
+		for (;;) {
+			if (term instanceof VarRef) {
+				VarRef ref = (VarRef) term;
+				if (ref.binding.ordinal < olderBound) {
+					result = term;
+					break;
+				}
+				binding = ref.binding;
+				term    = ref.var;
+			}
+			else if (term instanceof CompRef) {
+				CompRef ref = (CompRef) term;
+				if (ref.binding.ordinal < olderBound) {
+					result = term;
+					break;
+				}
+				binding = ref.binding;
+				term    = ref.comp;
+			}
+			if (term instanceof Var) {
+				Var var = (Var) term;
+				if (binding == null) {
+					result = raw(var);
+					break;
+				}
+				VarRef ref = var.ref(binding);
+				Term done = ref.getTemp();
+				if (done != null) {
+					result = done; // 複製済み、または循環
+					break;
+				}
+				Term value = ref.get();
+				if (value == null) {
+					String name = ref.var.name;
+					if (binding.ordinal != 1) {
+						name += "#"+ binding.ordinal;
+					}
+					mark(ref, (result = new Var(counter++, name)));
+					break;
+				}
+				mark(ref, Atom.CYCLE);
+				push(ref);
+				term = value; // 値はコールフレームに依存しない
+				continue;
+			}
+			if (term instanceof Comp && !term.isDefinite()) {
+				Comp comp = (Comp) term;
+				Term[] args = new Term[comp.arity()];
+				for (int i = 0; i < args.length - 1; ++i) {
+					args[i] = copy(comp.get(i), binding);
+				}
+				push(comp.predicate(), args);
+				term = comp.get(args.length - 1);
+				continue;
+			}
+			result = term;
+			break;
+		}
+		// 最後の引数から順に組み立て、辿った変数に複製を覚えさせる
+		int j = count;
+		while (j > start && levels[j - 1] == height) {
+			pending[--j].setTemp(result);
+		}
+		while (height > base) {
+			Term[] args = argss[--height];
+			args[args.length - 1] = result;
+			result = Functor.create(functors[height], args);
+			argss[height] = null;
+			while (j > start && levels[j - 1] == height) {
+				pending[--j].setTemp(result);
+			}
+		}
+		Arrays.fill(pending, start, count, null);
+		count = start;
+		return result;
+	}
+
+	/**
+	 * 一時領域に付けた印を全て取り除きます。
+	 */
+	void clear() {
+		for (int i = 0; i < size; ++i) {
+			marked[i].setTemp(ids[i], null);
+			marked[i] = null;
+		}
+		size = 0;
+	}
+
+	private Term raw(Var var) {
+		if (raw == null) {
+			raw = new HashMap<String,Term>();
+		}
+		Term val = raw.get(var.name);
+		if (val == null) {
+			raw.put(var.name, (val = new Var(counter++, var.name)));
+		}
+		return val;
+	}
+
+	private void mark(VarRef ref, Term value) {
+		if (size == marked.length) {
+			marked = Arrays.copyOf(marked, size * 2);
+			ids    = Arrays.copyOf(ids   , size * 2);
+		}
+		marked[size] = ref.binding;
+		ids   [size] = ref.var.id;
+		size++;
+		ref.setTemp(value);
+	}
+
+	private void push(Predicate functor, Term[] args) {
+		if (height == functors.length) {
+			functors = Arrays.copyOf(functors, height * 2);
+			argss    = Arrays.copyOf(argss   , height * 2);
+		}
+		functors[height] = functor;
+		argss   [height] = args;
+		height++;
+	}
+
+	private void push(VarRef ref) {
+		if (count == pending.length) {
+			pending = Arrays.copyOf(pending, count * 2);
+			levels  = Arrays.copyOf(levels , count * 2);
+		}
+		pending[count] = ref;
+		levels [count] = height;
+		count++;
+	}
+}
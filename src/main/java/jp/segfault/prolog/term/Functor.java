@@ -23,7 +23,25 @@ public abstract class Functor extends Term {
 	public static Functor create(String name, Term ...args) {
 		return create(name, Arrays.asList(args));
 	}
+
+	/**
+	 * {@link Predicate#of(String, int)}で得た関数子記述子で関数子を作成します。引数の配列はコピーされません。
+	 */
+	public static Functor create(Predicate functor, Term ...args) {
+		return args.length == 0
+				? Atom.make(functor.id)
+				: Comp.make(functor, args);
+	}
 	
+	/**
+	 * 項に含まれる基底項の複合項(変数を含まない複合項)を、同値な項の間で共有されるインスタンスに置き換えます(hash-consing)。
+	 * <p>共有された項同士は参照の比較で同値性を判定できます。
+	 * アトムと同じく、共有された項の表は全ての{@link jp.segfault.prolog.State}で共有されます。</p>
+	 */
+	public static Term intern(Term term) {
+		return Comp.share(term);
+	}
+
 	public static Term list(Term ...terms) {
 		return list(Arrays.asList(terms));
 	}
@@ -54,8 +72,9 @@ public abstract class Functor extends Term {
 	}
 
 	public static <T extends Term> Term foldBy(String name, Iterator<T> i, Term tail) {
+		Predicate functor = Predicate.of(name, 2);
 		while (i.hasNext()) {
-			tail = create(name, Arrays.asList(i.next(), tail));
+			tail = create(functor, i.next(), tail);
 		}
 		return tail;
 	}
@@ -76,10 +95,11 @@ public abstract class Functor extends Term {
 	public abstract String name();
 
 	/**
-	 * この関数子の{@link Predicate}表現です。
+	 * この関数子の{@link Predicate}表現(関数子記述子)です。
+	 * <p>intern されたものを返すので、参照の比較で同値性を判定できます。</p>
 	 */
 	public Predicate predicate() {
-		return new Predicate(name(), arity());
+		return Predicate.of(name(), arity());
 	}
 	
 	/**
@@ -108,7 +128,7 @@ public abstract class Functor extends Term {
 	 * この関数子を、リストを構成するconsセルまたはcdrとみなし、リストの要素をすべて返します。
 	 */
 	public List<Term> unlist() {
-		return unlist(new Predicate(".", 2), false);
+		return unlist(Predicate.CONS, false);
 	}
 
 	/**
@@ -1,45 +1,245 @@
 package jp.segfault.prolog.term;
 
+import java.math.BigInteger;
+
 /**
  * Prologの数値です。
+ * <p>整数は{@code long}、浮動小数点数は{@code double}のまま保持します。
+ * {@code long}の範囲を超える整数は{@link BigInteger}で保持します。
+ * 小さな整数は予め作成したインスタンスを共有します。</p>
  * @author shun
  */
-public class Numeric extends Term implements Atomic<Number> {
+public abstract class Numeric extends Term implements Atomic<Number> {
 
-	private Number value;
+	// 共有する整数の範囲
+	private static final int CACHE_LOW  = -128;
+	private static final int CACHE_HIGH = 1024;
+	private static final Numeric[] cache = new Numeric[CACHE_HIGH - CACHE_LOW + 1];
+	static {
+		for (int i = 0; i < cache.length; ++i) {
+			cache[i] = new Int(i + CACHE_LOW);
+		}
+	}
 
-	public static Numeric make(Number value) {
-		return new Numeric(value);
+	public static Numeric make(long value) {
+		if (CACHE_LOW <= value && value <= CACHE_HIGH) {
+			return cache[(int) value - CACHE_LOW];
+		}
+		return new Int(value);
 	}
-	
-	private Numeric(Number value) {
-		this.value = value;
+
+	public static Numeric make(double value) {
+		return new Real(value);
 	}
 
-	@Override
-	public boolean equals(Object o) {
-		return o instanceof Numeric && value.equals(((Numeric) o).value);
+	public static Numeric make(BigInteger value) {
+		if (value.bitLength() < 64) {
+			return make(value.longValue());
+		}
+		return new Big(value);
 	}
-	
+
+	public static Numeric make(Number value) {
+		if (value instanceof Integer || value instanceof Long
+				|| value instanceof Short || value instanceof Byte) {
+			return make(value.longValue());
+		}
+		if (value instanceof Double || value instanceof Float) {
+			return make(value.doubleValue());
+		}
+		if (value instanceof BigInteger) {
+			return make((BigInteger) value);
+		}
+		return new Boxed(value);
+	}
+
+	private Numeric() {
+	}
+
 	@Override
 	public <R,A> R accept(A arg, Visitor<R,A> visitor) {
 		return visitor.visit(arg, this);
 	}
-	
+
 	@Override
 	public Numeric numeric() {
 		return this;
 	}
 
-	@Override
-	public Number value() {
-		return value;
+	/**
+	 * 整数であればtrueを返します。
+	 */
+	public abstract boolean isInteger();
+
+	/**
+	 * {@code long}の範囲を超える整数であればtrueを返します。
+	 * <p>{@link #value()}と違い、オブジェクトを作成しません。</p>
+	 */
+	public boolean isBig() {
+		return false;
 	}
 
+	/**
+	 * 値を{@code long}で返します。浮動小数点数は切り捨てられます。
+	 */
+	public abstract long longValue();
+
+	/**
+	 * 値を{@code double}で返します。
+	 */
+	public abstract double doubleValue();
+
+	/**
+	 * 値を返します。{@code int}の範囲の整数は{@link Integer}、{@code long}の範囲の整数は{@link Long}、
+	 * それ以外の整数は{@link BigInteger}になります。
+	 */
+	@Override
+	public abstract Number value();
+
 	@Override
 	public int compareTo(Atomic<Number> o) {
-		double d = value.doubleValue() - o.value().doubleValue();
+		if (this instanceof Int && o instanceof Int) {
+			return Long.compare(((Int) this).value, ((Int) o).value);
+		}
+		if (isInteger() && o instanceof Numeric && ((Numeric) o).isInteger()) {
+			return big(this).compareTo(big((Numeric) o));
+		}
+		double d = doubleValue() - o.value().doubleValue();
 		return d < 0 ? -1: d > 0 ? 1: 0;
 	}
 
+	/**
+	 * 整数です。
+	 */
+	private static class Int extends Numeric {
+
+		final long value;
+
+		Int(long value) {
+			this.value = value;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Int && ((Int) o).value == value;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (value ^ (value >>> 32));
+		}
+
+		@Override public boolean isInteger()   { return true; }
+		@Override public long    longValue()   { return value; }
+		@Override public double  doubleValue() { return value; }
+
+		@Override
+		public Number value() {
+			return value == (int) value ? Integer.valueOf((int) value): Long.valueOf(value);
+		}
+	}
+
+	/**
+	 * 浮動小数点数です。
+	 */
+	private static class Real extends Numeric {
+
+		final double value;
+
+		Real(double value) {
+			this.value = value;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Real && Double.doubleToLongBits(((Real) o).value)
+					== Double.doubleToLongBits(value);
+		}
+
+		@Override
+		public int hashCode() {
+			long bits = Double.doubleToLongBits(value);
+			return (int) (bits ^ (bits >>> 32));
+		}
+
+		@Override public boolean isInteger()   { return false; }
+		@Override public long    longValue()   { return (long) value; }
+		@Override public double  doubleValue() { return value; }
+
+		@Override
+		public Number value() {
+			return value;
+		}
+	}
+
+	private static BigInteger big(Numeric numeric) {
+		return numeric instanceof Big ? ((Big) numeric).value: BigInteger.valueOf(numeric.longValue());
+	}
+
+	/**
+	 * {@code long}の範囲を超える整数です。
+	 */
+	private static class Big extends Numeric {
+
+		final BigInteger value;
+
+		Big(BigInteger value) {
+			this.value = value;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Big && value.equals(((Big) o).value);
+		}
+
+		@Override
+		public int hashCode() {
+			return value.hashCode();
+		}
+
+		@Override public boolean isInteger()   { return true; }
+		@Override public boolean isBig()       { return true; }
+		@Override public long    longValue()   { return value.longValue(); }
+		@Override public double  doubleValue() { return value.doubleValue(); }
+
+		@Override
+		public Number value() {
+			return value;
+		}
+	}
+
+	/**
+	 * その他の{@link Number}です。
+	 */
+	private static class Boxed extends Numeric {
+
+		final Number value;
+
+		Boxed(Number value) {
+			this.value = value;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Boxed && value.equals(((Boxed) o).value);
+		}
+
+		@Override
+		public int hashCode() {
+			return value.hashCode();
+		}
+
+		@Override
+		public boolean isInteger() {
+			return false;
+		}
+
+		@Override public long    longValue()   { return value.longValue(); }
+		@Override public double  doubleValue() { return value.doubleValue(); }
+
+		@Override
+		public Number value() {
+			return value;
+		}
+	}
 }
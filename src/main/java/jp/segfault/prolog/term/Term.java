@@ -2,10 +2,8 @@ package jp.segfault.prolog.term;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 
 import jp.segfault.prolog.Binding;
 import jp.segfault.prolog.Predicate;
@@ -47,7 +45,12 @@ public abstract class Term {
 	 * コールフレームと{@link Term}を関連付けを解除します。
 	 */
 	public final Term unbind() {
-		return rebind(null, new int[]{0}, new HashMap<Term,Term>(), 0);
+		Copier copier = new Copier(0, 0);
+		try {
+			return copier.copy(this, null);
+		} finally {
+			copier.clear();
+		}
 	}
 
 	/**
@@ -61,20 +64,15 @@ public abstract class Term {
 	 * 未束縛の変数を新しいコールフレームに関連付けます。
 	 */
 	public final Term rebind(Binding binding, int olderBound) {
-		int[] counter = new int[]{ binding.locals() };
-		// TODO 効率化
-		Term term = rebind(null, counter
-				, new HashMap<Term,Term>(), olderBound).bind(binding);
-		binding.expandLocal(counter[0]);
-		return term;
-	}
-	
-	/**
-	 * {@link Term#rebind()}を実装する為に、サブクラスによってオーバーライドされます。
-	 */
-	protected Term rebind(Binding binding,
-			int[] counter, Map<Term,Term> done, int olderBound) {
-		return this;
+		Copier copier = new Copier(binding.locals(), olderBound);
+		Term term;
+		try {
+			term = copier.copy(this, null);
+		} finally {
+			copier.clear();
+		}
+		binding.expandLocal(copier.counter);
+		return term.bind(binding);
 	}
 	
 	/**
@@ -262,7 +260,7 @@ public abstract class Term {
 			for(int i = 0; i < args.length; ++i) {
 				args[i] = term.get(i).accept(null, this);
 			}
-			return Functor.create(term.name(), args);
+			return Functor.create(term.predicate(), args);
 		}
 		
 		@Override
@@ -304,6 +302,19 @@ public abstract class Term {
 		String visit(Term term, boolean inList) {
 			return term.accept(inList, this);
 		}
+
+		@Override
+		public String visit(Boolean inList, Functor term) {
+			// 兄弟に同じ項が現れても循環ではないので、辿り終えたら取り除く
+			if(!done.add(term)) {
+				return safeVisit(inList, term, true);
+			}
+			try {
+				return safeVisit(inList, term, false);
+			} finally {
+				done.remove(term);
+			}
+		}
 		
 		@Override
 		public String visit(Boolean _, Atom term) {
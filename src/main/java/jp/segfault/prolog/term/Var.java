@@ -1,7 +1,5 @@
 package jp.segfault.prolog.term;
 
-import java.util.Map;
-
 import jp.segfault.prolog.Binding;
 
 /**
@@ -36,29 +34,6 @@ public class Var extends Variable implements Template {
 		return new VarRef(this, binding);
 	}
 	
-	@Override
-	protected Term rebind(Binding binding, int[] counter, Map<Term,Term> done, int olderBound) {
-		String name = this.name;
-		Term    key = this;
-		if(binding != null) {
-			VarRef var = ref(binding);
-			Term   val = var.get();
-			if(val != null) {
-				return val.rebind(binding, counter, done, olderBound);
-			}
-			name = var.var.name;
-			 key = var;
-			if(binding.ordinal != 1) {
-				name += "#"+ binding.ordinal;
-			}
-		}
-		Term val = done.get(key);
-		if(val == null) {
-			done.put(key, (val = new Var(counter[0]++, name)));
-		}
-		return val;
-	}
-	
 	@Override
 	public int id() { return id; }
 	
@@ -1,7 +1,5 @@
 package jp.segfault.prolog.term;
 
-import java.util.Map;
-
 import jp.segfault.prolog.Binding;
 
 /**
@@ -41,11 +39,6 @@ public class VarRef extends Variable {
 		return false;
 	}
 	
-	@Override
-	protected Term rebind(Binding _, int[] counter, Map<Term,Term> done, int olderBound) {
-		return binding.ordinal < olderBound ? this: var.rebind(binding, counter, done, olderBound);
-	}
-	
 	@Override
 	public Term strip() {
 		VarRef ref = var.ref(binding);
@@ -1,5 +1,7 @@
 package jp.segfault.prolog.term;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import jp.segfault.prolog.QueryException;
 
 /**
@@ -8,7 +10,7 @@ import jp.segfault.prolog.QueryException;
  */
 public abstract class Variable extends Term {
 
-	private static int UniqueIdCounter = 0;
+	private static final AtomicInteger UniqueIdCounter = new AtomicInteger();
 	
 	/**
 	 * ワイルドカード変数(_)です。
@@ -45,7 +47,7 @@ public abstract class Variable extends Term {
 	 * 他の変数と重複しない名前を持つ変数を作成します。
 	 */
 	public static Variable create() {
-		return create("$"+ ++UniqueIdCounter);
+		return create("$"+ UniqueIdCounter.incrementAndGet());
 	}
 	
 	@Override
@@ -0,0 +1,358 @@
+package jp.segfault.prolog.tool;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import jp.segfault.prolog.Query;
+import jp.segfault.prolog.State;
+
+/**
+ *
+ * 処理速度(LIPS)と、論理推論あたりのメモリ割り当て量を計測するベンチマークです。
+ * <p>使い方</p>
+ * <pre><code>&gt; java -cp prolog.jar jp.segfault.prolog.tool.Benchmark [--threads=N,..] [FLAG=VALUE].. [NAME]..
+ *nrev30: 123456 LIPS, 789.0 bytes/LI (1000 runs, 4016 ms)</code></pre>
+ * <p>FLAG=VALUE は計測前に Prolog Flag として設定されます(compile_predicates=yes など)。
+ * NAME を省略すると全てのベンチマークを実行します。</p>
+ * <p>--threads=1,2,4,8,16,32 のようにスレッド数を指定すると、一つのStateに読み込んだプログラムを
+ * それぞれのスレッド数で同時に実行し、全体の処理速度と1スレッド目の指定に対する比を表示します。</p>
+ *
+ * @author shun
+ *
+ */
+public class Benchmark {
+
+	/**
+	 * ベンチマークの一つです。
+	 * @author shun
+	 */
+	public static class Case {
+
+		public final String name;
+		public final String program;
+		public final String goal;
+		public final long   inferences;
+
+		/**
+		 * @param program    事前に読み込むPrologテキスト
+		 * @param goal       1回分の計測で実行するゴール
+		 * @param inferences goal 1回あたりの論理推論の数
+		 */
+		public Case(String name, String program, String goal, long inferences) {
+			this.name       = name;
+			this.program    = program;
+			this.goal       = goal;
+			this.inferences = inferences;
+		}
+	}
+
+	private static final LinkedHashMap<String,Case> cases = new LinkedHashMap<String,Case>();
+
+	public static void add(Case c) {
+		cases.put(c.name, c);
+	}
+
+	static {
+		// 30要素のリストの naive reverse は 496 回の論理推論
+		add(new Case("nrev30",
+				"nrev([], []).\n"+
+				"nrev([H|T], R) :- nrev(T, RT), app(RT, [H], R).\n"+
+				"app([], L, L).\n"+
+				"app([H|T], L, [H|R]) :- app(T, L, R).\n"+
+				"bench_list(L) :- range(0, 30, L).\n",
+				"bench_list(L), nrev(L, _).", 496));
+		// 1回の繰り返しが loop/1 と is/2 の2回の論理推論
+		add(new Case("loop10k",
+				"loop(0) :- !.\n"+
+				"loop(N) :- N1 is N - 1, loop(N1).\n",
+				"loop(10000).", 20001));
+		// 8クイーンの全解の探索。バックトラッキングが大半を占める
+		add(new Case("queens8",
+				"sel(X, [X|T], T).\n"+
+				"sel(X, [H|T], [H|R]) :- sel(X, T, R).\n"+
+				"no_attack(_, [], _).\n"+
+				"no_attack(Q, [Q1|Qs], D) :- Q =\\= Q1 + D, Q =\\= Q1 - D, D1 is D + 1, no_attack(Q, Qs, D1).\n"+
+				"queens([], Qs, Qs).\n"+
+				"queens(Us, Safe, Qs) :- sel(Q, Us, Us1), no_attack(Q, Safe, 1), queens(Us1, [Q|Safe], Qs).\n",
+				"queens([1,2,3,4,5,6,7,8], [], _), fail; true.", 75409));
+		// 10クイーンの全解を findall/3 と parallel_findall/3 で集める(--threads とは別に、一つのゴールの中で並列に実行する)。
+		// parallel_findall/3 の論理推論の数は、同じ探索をする findall/3 の数で数える
+		String queens =
+				"sel(X, [X|T], T).\n"+
+				"sel(X, [H|T], [H|R]) :- sel(X, T, R).\n"+
+				"no_attack(_, [], _).\n"+
+				"no_attack(Q, [Q1|Qs], D) :- Q =\\= Q1 + D, Q =\\= Q1 - D, D1 is D + 1, no_attack(Q, Qs, D1).\n"+
+				"queens([], Qs, Qs).\n"+
+				"queens(Us, Safe, Qs) :- sel(Q, Us, Us1), no_attack(Q, Safe, 1), queens(Us1, [Q|Safe], Qs).\n";
+		add(new Case("queens10_findall", queens,
+				"findall(Qs, queens([1,2,3,4,5,6,7,8,9,10], [], Qs), L), length(L, 724).", 1822266));
+		add(new Case("queens10_parallel", queens,
+				"parallel_findall(Qs, queens([1,2,3,4,5,6,7,8,9,10], [], Qs), L), length(L, 724).", 1822266));
+		// 覆面算 SEND+MORE=MONEY の全解。下の桁から数字を選び、桁ごとに枝刈りする
+		String puzzle =
+				"sel(X, [X|T], T).\n"+
+				"sel(X, [H|T], [H|R]) :- sel(X, T, R).\n"+
+				"puzzle([S,E,N,D,M,O,R,Y]) :-\n"+
+				"  sel(D, [0,1,2,3,4,5,6,7,8,9], D1), sel(E, D1, D2),\n"+
+				"  Y0 is D + E, Y is Y0 mod 10, C1 is Y0 // 10, sel(Y, D2, D3),\n"+
+				"  sel(N, D3, D4), sel(R, D4, D5), E0 is N + R + C1, E =:= E0 mod 10, C2 is E0 // 10,\n"+
+				"  sel(O, D5, D6), N0 is E + O + C2, N =:= N0 mod 10, C3 is N0 // 10,\n"+
+				"  sel(S, D6, D7), S > 0, sel(M, D7, _), M > 0, O0 is S + M + C3, O =:= O0 mod 10, M =:= O0 // 10.\n";
+		add(new Case("sendmore_findall", puzzle,
+				"findall(P, puzzle(P), [_]).", 25679));
+		add(new Case("sendmore_parallel", puzzle,
+				"parallel_findall(P, puzzle(P), [_]).", 25679));
+		// 100万要素のリストの複製。range/3 の1要素あたり2回と、複製した要素1個あたり1回と数える
+		add(new Case("copy1m",
+				"",
+				"range(0, 1000000, L), copy_term(f(L, _), _).", 3000000));
+		// 基底項の引数を持つ事実の照合。1回の繰り返しが gm/1、conf/1、is/2 の3回の論理推論
+		add(new Case("ground1k",
+				"conf(db(host(localhost), port(5432), opts([a,b,c,d,e,f,g,h]))).\n"+
+				"gm(0) :- !.\n"+
+				"gm(N) :- conf(db(host(localhost), port(5432), opts([a,b,c,d,e,f,g,h]))), N1 is N - 1, gm(N1).\n",
+				"gm(1000).", 3001));
+		// 10万要素のリスト同士の単一化。range/3 の1要素あたり2回と、単一化した要素1個あたり1回と数える
+		add(new Case("unify_list100k",
+				"",
+				"range(0, 100000, L), range(0, 100000, M), L = M.", 500000));
+		// 深さ16の二分木同士の単一化。木を作る t/2 と is/2 と、単一化した節1個あたり1回と数える
+		add(new Case("unify_tree16",
+				"t(0, leaf) :- !.\n"+
+				"t(D, node(L, D, R)) :- D1 is D - 1, t(D1, L), t(D1, R).\n",
+				"t(16, X), t(16, Y), X = Y.", 524283));
+		// 第一引数のキーが同じ20個の節から、複合項の中の定数で一つを選ぶ。1回の繰り返しが sel/1、r/2、is/2 の3回の論理推論
+		add(new Case("select1k",
+				"r(p(a, 1), 1).\n"+
+				"r(p(a, 2), 2).\n"+
+				"r(p(a, 3), 3).\n"+
+				"r(p(a, 4), 4).\n"+
+				"r(p(a, 5), 5).\n"+
+				"r(p(a, 6), 6).\n"+
+				"r(p(a, 7), 7).\n"+
+				"r(p(a, 8), 8).\n"+
+				"r(p(a, 9), 9).\n"+
+				"r(p(a, 10), 10).\n"+
+				"r(p(a, 11), 11).\n"+
+				"r(p(a, 12), 12).\n"+
+				"r(p(a, 13), 13).\n"+
+				"r(p(a, 14), 14).\n"+
+				"r(p(a, 15), 15).\n"+
+				"r(p(a, 16), 16).\n"+
+				"r(p(a, 17), 17).\n"+
+				"r(p(a, 18), 18).\n"+
+				"r(p(a, 19), 19).\n"+
+				"r(p(a, 20), 20).\n"+
+				"sel(0) :- !.\n"+
+				"sel(N) :- r(p(a, 20), _), N1 is N - 1, sel(N1).\n",
+				"sel(1000).", 3001));
+		// select1k の繰り返しごとに、同じ述語に節を assert、retract する。
+		// 1回の繰り返しが sel/1、assertz/1、r/2、retract/1、is/2 の5回の論理推論
+		add(new Case("update_select100",
+				"r(p(a, 1), 1).\n"+
+				"r(p(a, 2), 2).\n"+
+				"r(p(a, 3), 3).\n"+
+				"r(p(a, 4), 4).\n"+
+				"r(p(a, 5), 5).\n"+
+				"r(p(a, 6), 6).\n"+
+				"r(p(a, 7), 7).\n"+
+				"r(p(a, 8), 8).\n"+
+				"r(p(a, 9), 9).\n"+
+				"r(p(a, 10), 10).\n"+
+				"sel(0) :- !.\n"+
+				"sel(N) :- assertz(r(p(b, N), N)), r(p(a, 10), _), retract(r(p(b, N), _)),\n"+
+				"  N1 is N - 1, sel(N1).\n",
+				"sel(100).", 501));
+		// 10万辺の鎖の推移閉包。テーブル化した左再帰と、テーブル化しない右再帰を比べる。
+		// 比較の為、論理推論の数は異なる解の数(10万)で数える
+		add(new Case("tc100k_tabled",
+				"mk(N, N) :- !.\n"+
+				"mk(I, N) :- I1 is I + 1, assertz(edge(I, I1)), mk(I1, N).\n"+
+				":- mk(0, 100000).\n"+
+				":- table path/2.\n"+
+				"path(X, Y) :- path(X, Z), edge(Z, Y).\n"+
+				"path(X, Y) :- edge(X, Y).\n",
+				"abolish_all_tables, (path(0, _), fail ; true).", 100000));
+		add(new Case("tc100k_sld",
+				"mk(N, N) :- !.\n"+
+				"mk(I, N) :- I1 is I + 1, assertz(edge(I, I1)), mk(I1, N).\n"+
+				":- mk(0, 100000).\n"+
+				"path(X, Y) :- edge(X, Y).\n"+
+				"path(X, Y) :- edge(X, Z), path(Z, Y).\n",
+				"path(0, _), fail ; true.", 100000));
+		// 16個の菱形を繋いだグラフの推移閉包。テーブル化しなければ経路の数(2の16乗)だけ同じ解を求め直す。
+		// 論理推論の数は異なる解の数(48)で数える
+		add(new Case("diamond16_tabled",
+				"mk(16) :- !.\n"+
+				"mk(I) :- A is 3 * I, B is A + 1, C is A + 2, D is A + 3,\n"+
+				"  assertz(edge(A, B)), assertz(edge(A, C)), assertz(edge(B, D)), assertz(edge(C, D)),\n"+
+				"  I1 is I + 1, mk(I1).\n"+
+				":- mk(0).\n"+
+				":- table path/2.\n"+
+				"path(X, Y) :- path(X, Z), edge(Z, Y).\n"+
+				"path(X, Y) :- edge(X, Y).\n",
+				"abolish_all_tables, (path(0, _), fail ; true).", 48));
+		add(new Case("diamond16_sld",
+				"mk(16) :- !.\n"+
+				"mk(I) :- A is 3 * I, B is A + 1, C is A + 2, D is A + 3,\n"+
+				"  assertz(edge(A, B)), assertz(edge(A, C)), assertz(edge(B, D)), assertz(edge(C, D)),\n"+
+				"  I1 is I + 1, mk(I1).\n"+
+				":- mk(0).\n"+
+				"path(X, Y) :- edge(X, Y).\n"+
+				"path(X, Y) :- edge(X, Z), path(Z, Y).\n",
+				"path(0, _), fail ; true.", 48));
+		// 依存しない述語を assert、retract しながら、テーブル化した述語を繰り返し呼び出す。
+		// 表は捨てられないので、2回目からは表の解を返すだけになる。論理推論の数は返した解の数で数える
+		add(new Case("tabled_updates",
+				"mk(16) :- !.\n"+
+				"mk(I) :- A is 3 * I, B is A + 1, C is A + 2, D is A + 3,\n"+
+				"  assertz(edge(A, B)), assertz(edge(A, C)), assertz(edge(B, D)), assertz(edge(C, D)),\n"+
+				"  I1 is I + 1, mk(I1).\n"+
+				":- mk(0).\n"+
+				":- table path/2.\n"+
+				"path(X, Y) :- path(X, Z), edge(Z, Y).\n"+
+				"path(X, Y) :- edge(X, Y).\n"+
+				"noise(-1).\n"+
+				"upd(0) :- !.\n"+
+				"upd(N) :- assertz(noise(N)), retract(noise(N)), (path(0, _), fail ; true), N1 is N - 1, upd(N1).\n",
+				"upd(100).", 4800));
+	}
+
+	private static final long WARMUP_MILLIS  = 2000;
+	private static final long MEASURE_MILLIS = 3000;
+
+	public static void main(String[] args) throws Exception {
+		LinkedHashMap<String,String> flags = new LinkedHashMap<String,String>();
+		List<String> names = new ArrayList<String>();
+		List<Integer> threads = new ArrayList<Integer>();
+		for (String arg: args) {
+			int eq = arg.indexOf('=');
+			if (arg.startsWith("--threads=")) {
+				for (String n: arg.substring(eq + 1).split(",")) {
+					threads.add(Integer.valueOf(n.trim()));
+				}
+			}
+			else if (eq != -1) {
+				flags.put(arg.substring(0, eq), arg.substring(eq + 1));
+			}
+			else {
+				names.add(arg);
+			}
+		}
+		if (names.isEmpty()) {
+			names.addAll(cases.keySet());
+		}
+		for (String name: names) {
+			Case c = cases.get(name);
+			if (c == null) {
+				System.err.println("Unknown benchmark: "+ name +" "+ Arrays.asList(cases.keySet()));
+				continue;
+			}
+			State state = new State(System.in, System.out);
+			for (Map.Entry<String,String> e: flags.entrySet()) {
+				state.setFlag(e.getKey(), e.getValue());
+			}
+			if (threads.isEmpty()) {
+				System.out.println(run(state, c));
+				continue;
+			}
+			state.parse(c.program);
+			double base = 0;
+			for (int n: threads) {
+				double lips = runConcurrently(state, c.goal, n) * c.inferences;
+				if (base == 0) {
+					base = lips;
+				}
+				System.out.println(String.format("%s x%d: %.0f LIPS (%.2fx)", c.name, n, lips, lips / base));
+			}
+		}
+	}
+
+	/**
+	 * 読み込み済みのStateで、ゴールをthreads個のスレッドから同時に繰り返し実行し、全体で1秒あたりの実行回数を返します。
+	 * <p>各スレッドはそれぞれ{@link jp.segfault.prolog.Query}を作ります。</p>
+	 */
+	public static double runConcurrently(final State state, final String goal, int threads) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			final CountDownLatch ready = new CountDownLatch(threads);
+			final CountDownLatch start = new CountDownLatch(1);
+			List<Future<Long>> futures = new ArrayList<Future<Long>>();
+			for (int i = 0; i < threads; ++i) {
+				futures.add(executor.submit(new Callable<Long>() {
+					@Override
+					public Long call() throws Exception {
+						run(state, goal, WARMUP_MILLIS);
+						ready.countDown();
+						start.await();
+						return run(state, goal, MEASURE_MILLIS);
+					}
+				}));
+			}
+			ready.await();
+			long nanos = System.nanoTime();
+			start.countDown();
+			long runs = 0;
+			for (Future<Long> future: futures) {
+				runs += future.get();
+			}
+			nanos = System.nanoTime() - nanos;
+			return runs / (nanos / 1e9);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * ベンチマークを実行し、結果を一行の文字列で返します。
+	 */
+	public static String run(State state, Case c) throws Exception {
+		state.parse(c.program);
+		run(state, c.goal, WARMUP_MILLIS);
+
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		long bytes0 = allocatedBytes(bean);
+		long start  = System.nanoTime();
+		long runs   = run(state, c.goal, MEASURE_MILLIS);
+		long nanos  = System.nanoTime() - start;
+		long bytes  = allocatedBytes(bean) - bytes0;
+
+		double lips = c.inferences * runs / (nanos / 1e9);
+		return String.format("%s: %.0f LIPS, %s bytes/LI (%d runs, %d ms)", c.name, lips
+				, bytes0 < 0 ? "-": String.format("%.1f", (double) bytes / (c.inferences * runs))
+				, runs, nanos / 1000000);
+	}
+
+	private static long run(State state, String goal, long millis) throws Exception {
+		long runs = 0;
+		long end  = System.currentTimeMillis() + millis;
+		do {
+			Query query = state.newQuery(goal);
+			if (query.ask() == null) {
+				throw new IllegalStateException("goal failed: "+ goal);
+			}
+			query.close();
+			runs++;
+		} while (System.currentTimeMillis() < end);
+		return runs;
+	}
+
+	// 現在のスレッドが割り当てたバイト数。計測出来ない場合は-1
+	private static long allocatedBytes(ThreadMXBean bean) {
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+}
@@ -140,6 +140,8 @@ public class CLI {
 		} catch (QueryException e) {
 			e.printStackTrace();
 			// state.out.println("エラー:"+ e.getMessage());
+		} finally {
+			query.close();
 		}
 	}
 
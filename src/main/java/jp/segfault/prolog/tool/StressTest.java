@@ -0,0 +1,120 @@
+package jp.segfault.prolog.tool;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import jp.segfault.prolog.Query;
+import jp.segfault.prolog.State;
+
+/**
+ *
+ * 末尾再帰のループを1億回繰り返し、一定のメモリで実行できることを確かめます。
+ * <p>使い方</p>
+ * <pre><code>&gt; java -Xmx32m -cp prolog.jar jp.segfault.prolog.tool.StressTest [FLAG=VALUE].. [NAME]..
+ *loop: ok (100000000 steps, 30223 ms, peak heap 10.8 MB)</code></pre>
+ * <p>コールフレームやChoicePointが解放されていなければ、小さなヒープでは OutOfMemoryError になります。
+ * FLAG=VALUE は実行前に Prolog Flag として設定されます(compile_predicates=yes など)。
+ * NAME を省略すると全てのケースを実行します。</p>
+ *
+ * @author shun
+ *
+ */
+public class StressTest {
+
+	public static final long STEPS = 100000000;
+
+	private static final LinkedHashMap<String,String[]> cases = new LinkedHashMap<String,String[]>();
+
+	/**
+	 * ケースを追加します。goal の %d は繰り返しの回数に置き換えられます。
+	 */
+	public static void add(String name, String program, String goal) {
+		cases.put(name, new String[]{ program, goal });
+	}
+
+	static {
+		// 第一引数のインデックスで決定的になる
+		add("loop",
+				"loop(0) :- !.\n"+
+				"loop(N) :- N1 is N - 1, loop(N1).\n",
+				"loop(%d).");
+		// 節を選ぶ度にChoicePointが作られ、カットで取り除かれる
+		add("for0_inc",
+				"for0_inc(I, N) :- I < N, !, I1 is I + 1, for0_inc(I1, N).\n"+
+				"for0_inc(N, N).\n",
+				"for0_inc(0, %d).");
+		// 条件分岐の後の末尾呼び出し
+		add("if_then_else",
+				"ite(N) :- ( N =:= 0 -> true ; N1 is N - 1, ite(N1) ).\n",
+				"ite(%d).");
+		// 累積引数
+		add("accumulate",
+				"acc(0, S, S) :- !.\n"+
+				"acc(N, S0, S) :- S1 is S0 + 1, N1 is N - 1, acc(N1, S1, S).\n",
+				"acc(%d, 0, S), S =:= %<d.");
+		// バックトラッキングによる繰り返し
+		add("repeat",
+				"",
+				"repeat(%d), fail; true.");
+	}
+
+	public static void main(String[] args) throws Exception {
+		LinkedHashMap<String,String> flags = new LinkedHashMap<String,String>();
+		List<String> names = new ArrayList<String>();
+		for (String arg: args) {
+			int eq = arg.indexOf('=');
+			if (eq != -1) {
+				flags.put(arg.substring(0, eq), arg.substring(eq + 1));
+			}
+			else {
+				names.add(arg);
+			}
+		}
+		if (names.isEmpty()) {
+			names.addAll(cases.keySet());
+		}
+		for (String name: names) {
+			String[] c = cases.get(name);
+			if (c == null) {
+				System.err.println("Unknown case: "+ name +" "+ Arrays.asList(cases.keySet()));
+				continue;
+			}
+			State state = new State(System.in, System.out);
+			for (Map.Entry<String,String> e: flags.entrySet()) {
+				state.setFlag(e.getKey(), e.getValue());
+			}
+			System.out.println(name +": "+ run(state, c[0], String.format(c[1], STEPS)));
+		}
+	}
+
+	/**
+	 * ゴールを一度だけ実行し、結果を一行の文字列で返します。
+	 */
+	public static String run(State state, String program, String goal) throws Exception {
+		state.parse(program);
+		List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+		for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+				pools.add(pool);
+			}
+		}
+		long start = System.nanoTime();
+		Query query = state.newQuery(goal);
+		boolean ok = query.ask() != null;
+		query.close();
+		long millis = (System.nanoTime() - start) / 1000000;
+		long peak = 0;
+		for (MemoryPoolMXBean pool: pools) {
+			peak += pool.getPeakUsage().getUsed();
+		}
+		return String.format("%s (%d steps, %d ms, peak heap %.1f MB)"
+				, ok ? "ok": "failed", STEPS, millis, peak / (1024.0 * 1024));
+	}
+}
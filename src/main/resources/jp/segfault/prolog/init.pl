@@ -8,10 +8,12 @@
 :- op(1200, xfx, ':-').
 :- op(1200, xfx,  -->).
 :- op(1200,  fx,   ?-).
+:- op(1150,  fx, table).
 :- op(1100, xfy,    ;).
 :- op(1050, xfx,   ->).
 :- op(1050, xfx,  *->).
 :- op(1000, xfy,    ,).
+:- op( 950, xfy,    &).
 :- op( 900,  fy,   \+).
 :- op( 700, xfx,   is).
 :- op( 700, xfx,    <).
@@ -32,15 +34,18 @@
 :- op( 500, yfx,    -).
 :- op( 500, yfx,   /\).
 :- op( 500, yfx,   \/).
+:- op( 500, yfx,  xor).
 :- op( 400, yfx,    *).
 :- op( 400, yfx,    /).
 :- op( 400, yfx,   //).
 :- op( 400, yfx,  mod).
+:- op( 400, yfx,  div).
 :- op( 400, yfx,  rem).
 :- op( 400, yfx,   <<).
 :- op( 400, yfx,   >>).
 :- op( 200, xfx,   **).
 :- op( 200,  fy,    -).
+:- op( 200,  fy,    \).
 :- op( 200, yfx,    .).
 :- op( 200, xfy,    ^).
 :- op(  50, xfx,    :).
@@ -54,6 +59,10 @@
 :- set_prolog_flag(trace_tokenizer,   no).
 :- set_prolog_flag(trace_call_frame,  no).
 :- set_prolog_flag(benchmark_parse,   no).
+:- set_prolog_flag(compile_predicates, no).
+:- set_prolog_flag(heap_segment,      no).
+:- set_prolog_flag(hash_consing,      no).
+:- set_prolog_flag(index_statistics,  no).
 
 
 %%
@@ -178,18 +187,6 @@ A  == B :-    term_compare(A, B, 0).
 A \== B :- \+ term_compare(A, B, 0).
 
 
-%%
-%% 算術
-%%
-
-A > B :- \+ (A < B; A =:= B).
-
-A >= B :- \+ A < B.
-A =< B :- \+ A > B.
-
-A =\= B :- \+ A =:= B.
-
-
 %%
 %% リスト操作
 %%